@@ -0,0 +1,61 @@
+package org.mallen.test.learning.dl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 各个后端（Redis、Zookeeper、Mysql）分布式锁的统一接口，方便在不同后端之间切换，以及对比各个后端加锁/解锁的开销。
+ * 一个实例对应一个锁资源，锁的持有者由实现类自己识别（线程、连接或者会话）。
+ *
+ * @author mallen
+ * @date 6/2/20
+ */
+public interface DistributedLock {
+    /**
+     * 阻塞式获取锁，直到获取成功
+     *
+     * @throws LockingException 获取锁过程中出现异常
+     */
+    void lock() throws LockingException;
+
+    /**
+     * 非阻塞式获取锁，只尝试一次
+     *
+     * @return 获取成功返回true，否则返回false
+     */
+    boolean tryLock();
+
+    /**
+     * 在指定时间内获取锁
+     *
+     * @param timeout 最长等待时间
+     * @param unit    时间单位
+     * @return 在等待时间内获取成功返回true，否则返回false
+     * @throws LockingException 获取锁过程中出现异常
+     */
+    boolean tryLock(long timeout, TimeUnit unit) throws LockingException;
+
+    /**
+     * 释放锁
+     *
+     * @throws LockingException 释放锁过程中出现异常
+     */
+    void unlock() throws LockingException;
+
+    /**
+     * 锁的租约时间，即获取锁后，如果不续时，锁多久后会自动失效
+     *
+     * @param unit 时间单位
+     * @return 租约时间；如果锁与会话/连接绑定，没有固定的租约时间，则返回-1
+     */
+    long getLeaseTime(TimeUnit unit);
+
+    /**
+     * 锁的持有者是否与线程绑定，即是否只有获取锁的线程才能释放锁。
+     * 不与线程绑定的锁（持有者为锁实例、会话或者连接）可以由一个线程获取，由同一个JVM中的另一个线程释放
+     *
+     * @return 默认返回true
+     */
+    default boolean isThreadBound() {
+        return true;
+    }
+}
@@ -1,4 +1,4 @@
-package org.mallen.test.learning.dl.zookeeper;
+package org.mallen.test.learning.dl;
 
 /**
  * @author mallen
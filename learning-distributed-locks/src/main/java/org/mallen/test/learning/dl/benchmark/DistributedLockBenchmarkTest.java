@@ -0,0 +1,216 @@
+package org.mallen.test.learning.dl.benchmark;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import io.lettuce.core.RedisURI;
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.ZooKeeper;
+import org.mallen.test.learning.dl.DistributedLock;
+import org.mallen.test.learning.dl.local.TwoLevelLockFactory;
+import org.mallen.test.learning.dl.mysql.table.MysqlLeaseLock;
+import org.mallen.test.learning.dl.mysql.table.MysqlTableLock;
+import org.mallen.test.learning.dl.redis.lettuce.LettuceLock;
+import org.mallen.test.learning.dl.redis.lettuce.LockClient;
+import org.mallen.test.learning.dl.redis.lettuce.fair.LettuceFairLock;
+import org.mallen.test.learning.dl.redis.stub.LockScriptStubs;
+import org.mallen.test.learning.dl.redis.stub.RedisStubServer;
+import org.mallen.test.learning.dl.zookeeper.ZkFairLock;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比各个后端分布式锁的加锁+解锁开销：吞吐量以及延迟的百分位（SampleTime模式会输出p50、p90、p99等）。
+ * 不需要启动外部服务，各个后端分别使用本地替身：
+ * 1. Redis：进程内的Redis协议桩服务{@link RedisStubServer}
+ * 2. Zookeeper：Curator的TestingServer
+ * 3. Mysql：Mysql模式的H2内存数据库
+ * 通过main方法运行，参数为最大竞争线程数（默认为8），会依次使用1、2、4...个线程竞争同一把锁。
+ *
+ * @author mallen
+ * @date 6/2/20
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1, timeUnit = TimeUnit.SECONDS) // 预热 2 轮，每次 1s
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS) // 测试 5 轮，每次 1s
+@Fork(1)
+public class DistributedLockBenchmarkTest {
+    private static final String LOCK_KEY = "benchmark_lock";
+    private static final String LOCK_PATH = "/mallen/test/dl/benchmark";
+    private static final int LOCK_ID = 1;
+
+    public static void main(String[] args) throws RunnerException {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            Options opt = new OptionsBuilder()
+                    .include(DistributedLockBenchmarkTest.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(opt).run();
+        }
+    }
+
+    @Benchmark
+    public void lockAndUnlock(Locker locker) {
+        locker.lock.lock();
+        locker.lock.unlock();
+    }
+
+    /**
+     * 每个后端的本地替身，所有竞争线程共享
+     */
+    @State(Scope.Benchmark)
+    public static class Backend {
+        @Param({"lettuce", "lettuce-pipelined", "lettuce-fair", "zookeeper", "zookeeper-local", "mysql", "mysql-lease"})
+        private String backend;
+        private RedisStubServer redisServer;
+        private LettuceLock lettuceLock;
+        private LettuceFairLock lettuceFairLock;
+        private TestingServer zkServer;
+        /**
+         * zookeeper-local：所有线程共享一个连接，先在本地排队再竞争zookeeper锁
+         */
+        private ZooKeeper sharedZooKeeper;
+        private DistributedLock twoLevelLock;
+        private HikariDataSource dataSource;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            switch (backend) {
+                case "lettuce":
+                    redisServer = new RedisStubServer();
+                    LockScriptStubs.register(redisServer);
+                    // LettuceLock使用线程标识作为锁的值，所以可以被多个线程共享
+                    lettuceLock = new LettuceLock(RedisURI.create("127.0.0.1", redisServer.getPort()), LOCK_KEY);
+                    break;
+                case "lettuce-pipelined":
+                    redisServer = new RedisStubServer();
+                    LockScriptStubs.register(redisServer);
+                    // 每100微秒或者积累64个命令时flush一次
+                    lettuceLock = new LettuceLock(LockClient.pipelined(RedisURI.create("127.0.0.1", redisServer.getPort()),
+                            100, TimeUnit.MICROSECONDS, 64), LOCK_KEY);
+                    break;
+                case "lettuce-fair":
+                    redisServer = new RedisStubServer();
+                    LockScriptStubs.register(redisServer);
+                    lettuceFairLock = new LettuceFairLock(RedisURI.create("127.0.0.1", redisServer.getPort()), LOCK_KEY);
+                    break;
+                case "zookeeper":
+                    zkServer = new TestingServer(true);
+                    break;
+                case "zookeeper-local":
+                    zkServer = new TestingServer(true);
+                    sharedZooKeeper = new ZooKeeper(zkServer.getConnectString(), 15000, event -> {
+                    });
+                    twoLevelLock = new TwoLevelLockFactory<>(key -> new ZkFairLock(sharedZooKeeper, LOCK_PATH + "/" + key))
+                            .getLock(LOCK_KEY);
+                    break;
+                case "mysql":
+                case "mysql-lease":
+                    dataSource = createDatasource();
+                    break;
+                default:
+                    throw new IllegalArgumentException("不支持的后端：" + backend);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException, InterruptedException {
+            if (null != sharedZooKeeper) {
+                sharedZooKeeper.close();
+            }
+            if (null != lettuceLock) {
+                lettuceLock.destory();
+            }
+            if (null != lettuceFairLock) {
+                lettuceFairLock.destory();
+            }
+            if (null != redisServer) {
+                redisServer.close();
+            }
+            if (null != zkServer) {
+                zkServer.close();
+            }
+            if (null != dataSource) {
+                dataSource.close();
+            }
+        }
+
+        private static HikariDataSource createDatasource() throws SQLException {
+            HikariConfig hikariConfig = new HikariConfig();
+            hikariConfig.setJdbcUrl("jdbc:h2:mem:DL_TEST;MODE=MySQL;DB_CLOSE_DELAY=-1");
+            HikariDataSource dataSource = new HikariDataSource(hikariConfig);
+            try (Connection connection = dataSource.getConnection();
+                 Statement statement = connection.createStatement()) {
+                // 与resources/MysqlTableLock.sql一致
+                statement.execute("CREATE TABLE IF NOT EXISTS `database_lock`\n" +
+                        "(\n" +
+                        "    `id`          BIGINT      NOT NULL AUTO_INCREMENT,\n" +
+                        "    `lock`        int         NOT NULL,\n" +
+                        "    `lock_at`     BIGINT      NOT NULL,\n" +
+                        "    `expire_at`   BIGINT      NULL,\n" +
+                        "    `locker`      varchar(50) NOT NULL,\n" +
+                        "    `description` varchar(1024),\n" +
+                        "    PRIMARY KEY (`id`),\n" +
+                        "    UNIQUE KEY `uiq_idx_lock` (`lock`),\n" +
+                        "    KEY `idx_expire_at` (`expire_at`)\n" +
+                        ")");
+            }
+            return dataSource;
+        }
+    }
+
+    /**
+     * 每个竞争线程持有的锁，Zookeeper锁需要每个线程持有一个连接
+     */
+    @State(Scope.Thread)
+    public static class Locker {
+        private DistributedLock lock;
+        private ZooKeeper zooKeeper;
+
+        @Setup(Level.Trial)
+        public void setup(Backend backend) throws IOException {
+            switch (backend.backend) {
+                case "lettuce":
+                case "lettuce-pipelined":
+                    lock = backend.lettuceLock;
+                    break;
+                case "lettuce-fair":
+                    lock = backend.lettuceFairLock;
+                    break;
+                case "zookeeper":
+                    zooKeeper = new ZooKeeper(backend.zkServer.getConnectString(), 15000, event -> {
+                    });
+                    lock = new ZkFairLock(zooKeeper, LOCK_PATH);
+                    break;
+                case "zookeeper-local":
+                    lock = backend.twoLevelLock;
+                    break;
+                case "mysql":
+                    lock = new MysqlTableLock(backend.dataSource, LOCK_ID);
+                    break;
+                case "mysql-lease":
+                    lock = new MysqlLeaseLock(backend.dataSource, LOCK_ID, 30, TimeUnit.SECONDS);
+                    break;
+                default:
+                    throw new IllegalArgumentException("不支持的后端：" + backend.backend);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws InterruptedException {
+            if (null != zooKeeper) {
+                zooKeeper.close();
+            }
+        }
+    }
+}
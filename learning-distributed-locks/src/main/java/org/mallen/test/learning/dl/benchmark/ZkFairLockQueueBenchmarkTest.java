@@ -0,0 +1,106 @@
+package org.mallen.test.learning.dl.benchmark;
+
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.mallen.test.learning.dl.zookeeper.ZkFairLock;
+import org.mallen.test.learning.dl.zookeeper.ZkUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 测试{@link ZkFairLock}在排队节点很多时的锁移交延迟：先由一个节点持有锁，再让queueSize个等待者排队，
+ * 释放锁后等待者依次获取、释放锁，统计平均每次移交的耗时。
+ * 每个等待者需要一个阻塞的线程，不适合使用JMH，所以直接通过main方法运行，参数为逗号分隔的队列长度（默认为10,100,1000,5000）。
+ * 等待者只在前一个节点被删除时被唤醒（没有惊群），但唤醒后仍然会重新获取所有子节点，再遍历一次找到前一个节点（不排序），
+ * 所以每次移交的耗时随着队列长度线性增加，本测试用于观察这部分开销。
+ *
+ * @author mallen
+ * @date 6/12/20
+ */
+public class ZkFairLockQueueBenchmarkTest {
+    private static final String LOCK_PATH = "/mallen/test/dl/queue-benchmark";
+
+    public static void main(String[] args) throws Exception {
+        String queueSizes = args.length > 0 ? args[0] : "10,100,1000,5000";
+        try (TestingServer server = new TestingServer(true)) {
+            // 所有等待者共享一个连接，每个ZkFairLock实例各自创建临时顺序节点
+            ZooKeeper zooKeeper = new ZooKeeper(server.getConnectString(), 15000, event -> {
+            });
+            try {
+                for (String queueSize : queueSizes.split(",")) {
+                    run(zooKeeper, LOCK_PATH + "/" + queueSize.trim(), Integer.parseInt(queueSize.trim()));
+                }
+            } finally {
+                zooKeeper.close();
+            }
+        }
+    }
+
+    private static void run(ZooKeeper zooKeeper, String lockPath, int queueSize) throws Exception {
+        ZkUtils.ensurePath(zooKeeper, ZooDefs.Ids.OPEN_ACL_UNSAFE, lockPath);
+        // 持有锁的节点，所有等待者都排在它后面
+        String holder = zooKeeper.create(lockPath + "/member_", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+
+        CountDownLatch done = new CountDownLatch(queueSize);
+        long[] acquiredAt = new long[queueSize];
+        List<Thread> waiters = new ArrayList<>(queueSize);
+        for (int i = 0; i < queueSize; i++) {
+            int index = i;
+            ZkFairLock lock = new ZkFairLock(zooKeeper, lockPath);
+            Thread waiter = new Thread(() -> {
+                lock.lock();
+                acquiredAt[index] = System.nanoTime();
+                lock.unlock();
+                done.countDown();
+            }, "waiter-" + i);
+            waiter.setDaemon(true);
+            waiters.add(waiter);
+            waiter.start();
+        }
+        // 等待所有等待者排好队：节点都已创建，并且所有等待者线程都已阻塞在等待获取锁上（而不是还在请求zookeeper）
+        long enqueueStart = System.nanoTime();
+        while (zooKeeper.getChildren(lockPath, false).size() < queueSize + 1 || !allParked(waiters)) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        long enqueueMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - enqueueStart);
+
+        long start = System.nanoTime();
+        zooKeeper.delete(holder, -1);
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        for (Thread waiter : waiters) {
+            waiter.join();
+        }
+
+        // 每次移交的延迟：从前一个等待者获取锁到后一个等待者获取锁
+        long previous = start;
+        long max = 0;
+        long[] sorted = acquiredAt.clone();
+        Arrays.sort(sorted);
+        for (long at : sorted) {
+            max = Math.max(max, at - previous);
+            previous = at;
+        }
+        System.out.println(String.format("队列长度：%d，排队耗时：%dms，平均移交延迟：%.3fms，最大移交延迟：%.3fms",
+                queueSize, enqueueMillis, elapsed / 1e6 / queueSize, max / 1e6));
+    }
+
+    /**
+     * 等待获取锁的线程阻塞在CountDownLatch上（有blocker），而等待zookeeper响应的线程阻塞在Object.wait上（没有blocker）
+     */
+    private static boolean allParked(List<Thread> waiters) {
+        for (Thread waiter : waiters) {
+            if (waiter.getState() != Thread.State.WAITING || null == LockSupport.getBlocker(waiter)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,142 @@
+package org.mallen.test.learning.dl.local;
+
+import org.mallen.test.learning.dl.DistributedLock;
+import org.mallen.test.learning.dl.LockingException;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 合并执行临界区（flat combining，见{@link FlatCombiner}）：调用{@link #withLock(String, Supplier)}的线程先把任务放入key对应的本地队列，
+ * 然后尝试成为该key的合并者，成为合并者的线程获取一次分布式锁，在持有锁期间依次执行队列中的多个任务（包括其他线程的任务），
+ * 然后释放锁，并唤醒任务已经完成的线程；没有成为合并者的线程等待自己的任务被执行，或者在合并者退出后接替它。
+ * 临界区很小（例如卖一张票）时，一次获取/释放分布式锁的网络开销被分摊到多个任务上。
+ * 同一个key的任务按提交顺序执行，每次持有锁最多执行maxBatch个任务，持有时间不超过maxHoldTime（在任务之间检查，不会中断正在执行的任务），以免其他JVM长时间获取不到锁。
+ * 合并者在自己的线程中获取和释放锁，所以可以用于与线程绑定的锁（Redis、Mysql）和不与线程绑定的锁（Zookeeper）。
+ *
+ * @author mallen
+ * @date 6/12/20
+ */
+public class CombiningLockExecutor {
+    /**
+     * 默认每次持有锁最多执行的任务数量
+     */
+    private static final int DEFAULT_MAX_BATCH = 64;
+    /**
+     * 默认每次持有锁的最长时间：100ms
+     */
+    private static final long DEFAULT_MAX_HOLD_MILLIS = 100;
+    private final Function<String, DistributedLock> lockFactory;
+    private final int maxBatch;
+    private final long maxHoldNanos;
+    private final Map<String, Combiner> combiners = new ConcurrentHashMap<>();
+
+    /**
+     * @param lockFactory 根据key创建分布式锁，每个key只会调用一次，同一时间只有一个本地线程（合并者）使用该锁
+     */
+    public CombiningLockExecutor(Function<String, DistributedLock> lockFactory) {
+        this(lockFactory, DEFAULT_MAX_BATCH, DEFAULT_MAX_HOLD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param lockFactory 根据key创建分布式锁，每个key只会调用一次，同一时间只有一个本地线程（合并者）使用该锁
+     * @param maxBatch    每次持有锁最多执行的任务数量
+     * @param maxHoldTime 每次持有锁的最长时间，需要小于锁的租约时间
+     * @param unit        时间单位
+     */
+    public CombiningLockExecutor(Function<String, DistributedLock> lockFactory, int maxBatch, long maxHoldTime, TimeUnit unit) {
+        if (maxBatch <= 0 || maxHoldTime <= 0) {
+            throw new IllegalArgumentException("maxBatch和maxHoldTime必须大于0");
+        }
+        this.lockFactory = lockFactory;
+        this.maxBatch = maxBatch;
+        this.maxHoldNanos = unit.toNanos(maxHoldTime);
+    }
+
+    /**
+     * 在持有key对应的分布式锁时执行task，阻塞直到task执行完成。task可能由其他线程执行
+     *
+     * @return task的返回值
+     * @throws LockingException 获取锁失败；task抛出的RuntimeException会原样抛出
+     */
+    public <T> T withLock(String key, Supplier<T> task) throws LockingException {
+        Task<T> pending = new Task<>(task);
+        // 等待合并者执行自己的任务，每次最多等待maxHoldTime
+        combiners.computeIfAbsent(key, k -> new Combiner(lockFactory.apply(k))).combiner.submit(pending);
+        try {
+            return pending.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private class Combiner {
+        private final DistributedLock lock;
+        private final FlatCombiner<Task<?>> combiner = new FlatCombiner<>(maxHoldNanos, TimeUnit.NANOSECONDS, this::combine);
+
+        Combiner(DistributedLock lock) {
+            this.lock = lock;
+        }
+
+        /**
+         * 获取一次锁，执行一批任务
+         */
+        private void combine(Queue<Task<?>> queue) {
+            if (queue.isEmpty()) {
+                return;
+            }
+            try {
+                lock.lock();
+            } catch (RuntimeException e) {
+                // 获取锁失败，这一批任务都以失败结束，以免等待者一直等待
+                for (int i = 0; i < maxBatch; i++) {
+                    Task<?> pending = queue.poll();
+                    if (null == pending) {
+                        break;
+                    }
+                    pending.completeExceptionally(e);
+                }
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                for (int i = 0; i < maxBatch && System.nanoTime() - start < maxHoldNanos; i++) {
+                    Task<?> pending = queue.poll();
+                    if (null == pending) {
+                        break;
+                    }
+                    pending.run();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static class Task<T> extends FlatCombiner.Pending<T> {
+        private final Supplier<T> task;
+
+        Task(Supplier<T> task) {
+            this.task = task;
+        }
+
+        void run() {
+            try {
+                complete(task.get());
+            } catch (Throwable e) {
+                completeExceptionally(e);
+            }
+        }
+    }
+}
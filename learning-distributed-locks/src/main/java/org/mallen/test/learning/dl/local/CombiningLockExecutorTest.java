@@ -0,0 +1,69 @@
+package org.mallen.test.learning.dl.local;
+
+import org.mallen.test.learning.dl.redis.lettuce.advance.LettuceAdvanceLock;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 与LettuceAdvanceLockTest相同的卖票场景：每个Seller每次卖一张票，临界区很小，
+ * 通过{@link CombiningLockExecutor}提交后，多个Seller的卖票任务在一次加锁/解锁中执行完毕
+ *
+ * @author mallen
+ * @date 6/12/20
+ */
+public class CombiningLockExecutorTest {
+    private static Integer tickets = 100;
+    /**
+     * 收集已卖票信息，如果正常的话，set的size应该等于tickets
+     */
+    private static Set<Integer> soldTickets = new HashSet(100, 1);
+    private static final String LOCK_KEY = "tickets_lock";
+
+    public static void main(String[] args) throws InterruptedException {
+        LettuceAdvanceLock lettuceLock = new LettuceAdvanceLock(LOCK_KEY);
+        CombiningLockExecutor executor = new CombiningLockExecutor(key -> lettuceLock);
+        int sellerCount = 10;
+        CountDownLatch latch = new CountDownLatch(sellerCount);
+        for (int i = 0; i < sellerCount; i++) {
+            Thread thread = new Thread(new Seller(latch, executor));
+            thread.setName("thread" + (i + 1));
+            thread.start();
+        }
+        latch.await();
+        // 打印卖出的票的数量，如果与tickets的数量不一样，说明存在多线程资源竞争的问题。
+        System.out.println("已卖票数量为：" + soldTickets.size());
+
+        lettuceLock.destory();
+    }
+
+    static class Seller implements Runnable {
+        private final CountDownLatch latch;
+        private final CombiningLockExecutor executor;
+
+        public Seller(CountDownLatch latch, CombiningLockExecutor executor) {
+            this.latch = latch;
+            this.executor = executor;
+        }
+
+        @Override
+        public void run() {
+            // 任务可能由其他线程执行，所以打印提交任务的线程名
+            String seller = Thread.currentThread().getName();
+            while (executor.withLock(LOCK_KEY, () -> sell(seller))) {
+            }
+            latch.countDown();
+        }
+
+        private Boolean sell(String seller) {
+            if (tickets > 0) {
+                soldTickets.add(tickets);
+                System.out.println(seller + "卖出票：" + tickets + "，执行线程：" + Thread.currentThread().getName());
+                tickets--;
+                return Boolean.TRUE;
+            }
+            return Boolean.FALSE;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.mallen.test.learning.dl.local;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * flat combining：调用者把请求放入队列后尝试成为合并者，成为合并者的线程通过combine一次处理队列中的多个请求（包括其他线程的请求），
+ * 没有成为合并者的线程等待自己的请求完成，或者在合并者退出后接替它。
+ * 合并者退出时唤醒队首请求的线程；等待者每次最多等待parkTime，即使错过了唤醒，也会重新检查自己的请求、尝试成为合并者。
+ * 请求完成（{@link Pending#complete(Object)}、{@link Pending#completeExceptionally(Throwable)}）时唤醒提交它的线程。
+ *
+ * @author mallen
+ * @date 6/16/20
+ */
+public class FlatCombiner<P extends FlatCombiner.Pending<?>> {
+    private final Queue<P> queue = new ConcurrentLinkedQueue<>();
+    /**
+     * 是否有线程正在作为合并者处理请求
+     */
+    private final AtomicBoolean combining = new AtomicBoolean(false);
+    private final long parkNanos;
+    private final Consumer<Queue<P>> combine;
+
+    /**
+     * @param parkTime 等待者每次等待的最长时间
+     * @param unit     时间单位
+     * @param combine  由合并者调用，从队列中取出一批请求并完成它们；抛出的异常会传给成为合并者的调用者，不能让取出的请求一直不完成
+     */
+    public FlatCombiner(long parkTime, TimeUnit unit, Consumer<Queue<P>> combine) {
+        this.parkNanos = unit.toNanos(parkTime);
+        this.combine = combine;
+    }
+
+    /**
+     * 放入请求，阻塞直到请求完成，请求可能由其他线程完成
+     */
+    public void submit(P pending) {
+        queue.add(pending);
+        Pending<?> own = pending;
+        while (!own.future.isDone()) {
+            if (combining.compareAndSet(false, true)) {
+                try {
+                    combine.accept(queue);
+                } finally {
+                    combining.set(false);
+                }
+                // 唤醒下一个等待者，由它接替成为合并者
+                Pending<?> next = queue.peek();
+                if (null != next) {
+                    LockSupport.unpark(next.thread);
+                }
+            } else {
+                LockSupport.parkNanos(this, parkNanos);
+            }
+        }
+    }
+
+    /**
+     * 等待合并者处理的请求，由提交它的线程创建
+     */
+    public static class Pending<T> {
+        private final Thread thread = Thread.currentThread();
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        public void complete(T value) {
+            future.complete(value);
+            LockSupport.unpark(thread);
+        }
+
+        public void completeExceptionally(Throwable e) {
+            future.completeExceptionally(e);
+            LockSupport.unpark(thread);
+        }
+
+        /**
+         * 请求的结果，只能在{@link FlatCombiner#submit(Pending)}返回后调用
+         *
+         * @throws java.util.concurrent.CompletionException 请求以异常完成
+         */
+        public T join() {
+            return future.join();
+        }
+    }
+}
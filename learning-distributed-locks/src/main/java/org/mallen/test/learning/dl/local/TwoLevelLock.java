@@ -0,0 +1,166 @@
+package org.mallen.test.learning.dl.local;
+
+import org.mallen.test.learning.dl.DistributedLock;
+import org.mallen.test.learning.dl.LockingException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 两级锁：先获取本地锁（每个key一个ReentrantLock），再获取分布式锁。
+ * 同一个JVM中同时只有一个线程竞争分布式锁，其他线程在本地等待，不会产生网络请求；不同的key使用不同的本地锁，互不影响。
+ * 如果分布式锁不与线程绑定（{@link DistributedLock#isThreadBound()}返回false），释放时有本地线程在等待同一个key，
+ * 则不释放分布式锁，直接移交给下一个本地线程，连续移交的次数不超过maxHandoffs；与线程绑定的锁（例如以线程标识作为锁的值的Redis锁）只能由获取锁的线程释放，不会移交。
+ * 同一个线程可以重入，只有最外层的unlock才会释放分布式锁。
+ * 最外层的加锁在获取到本地锁之后、获取（或者取走移交的）分布式锁之前调用beforeAcquire，例如在分布式锁中记录实际持有锁的线程。
+ *
+ * @author mallen
+ * @date 6/11/20
+ */
+public class TwoLevelLock implements DistributedLock {
+    private final ReentrantLock local;
+    private final DistributedLock remote;
+    private final int maxHandoffs;
+    private final Runnable beforeAcquire;
+    // 以下字段需要持有local才能修改
+    /**
+     * 当前JVM是否持有分布式锁（可能已经移交，但还没有本地线程取走）
+     */
+    private volatile boolean remoteHeld = false;
+    private int handoffs = 0;
+
+    TwoLevelLock(DistributedLock remote, int maxHandoffs, boolean fair, Runnable beforeAcquire) {
+        this.local = new ReentrantLock(fair);
+        this.remote = remote;
+        this.maxHandoffs = maxHandoffs;
+        this.beforeAcquire = beforeAcquire;
+    }
+
+    @Override
+    public void lock() throws LockingException {
+        local.lock();
+        if (local.getHoldCount() > 1) {
+            return;
+        }
+        acquireRemote(() -> {
+            remote.lock();
+            return true;
+        });
+    }
+
+    @Override
+    public boolean tryLock() {
+        if (!local.tryLock()) {
+            return false;
+        }
+        return local.getHoldCount() > 1 || acquireRemote(remote::tryLock);
+    }
+
+    @Override
+    public boolean tryLock(long timeout, TimeUnit unit) throws LockingException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean localLocked;
+        boolean interrupted = false;
+        try {
+            localLocked = local.tryLock(timeout, unit);
+        } catch (InterruptedException e) {
+            localLocked = false;
+            interrupted = true;
+        }
+        if (!localLocked) {
+            // 分布式锁可能是移交给自己的，放弃等待后没有线程会取走它；先释放再恢复中断标记，以免释放时被中断
+            releaseIfIdle();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+        return local.getHoldCount() > 1
+                || acquireRemote(() -> remote.tryLock(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+    }
+
+    @Override
+    public void unlock() throws LockingException {
+        if (!local.isHeldByCurrentThread()) {
+            throw new LockingException("当前线程没有持有锁，不能解锁!");
+        }
+        if (local.getHoldCount() > 1) {
+            local.unlock();
+            return;
+        }
+        try {
+            if (!remote.isThreadBound() && local.hasQueuedThreads() && handoffs < maxHandoffs) {
+                // 有本地线程在等待，直接移交分布式锁
+                handoffs++;
+            } else {
+                releaseRemote();
+            }
+        } finally {
+            local.unlock();
+        }
+        // 移交后等待者可能已经放弃等待（tryLock超时）
+        releaseIfIdle();
+    }
+
+    @Override
+    public long getLeaseTime(TimeUnit unit) {
+        return remote.getLeaseTime(unit);
+    }
+
+    @Override
+    public boolean isThreadBound() {
+        return true;
+    }
+
+    /**
+     * 分布式锁已经在外部释放（例如与其他锁一起批量删除），只清理本地状态。调用时不应该再有线程使用锁
+     */
+    public void forgetRemote() {
+        remoteHeld = false;
+        handoffs = 0;
+    }
+
+    /**
+     * 持有本地锁后获取分布式锁：已经持有（其他本地线程移交）时直接取走，否则获取分布式锁。获取失败时释放本地锁
+     */
+    private boolean acquireRemote(BooleanSupplier attempt) {
+        boolean success = false;
+        try {
+            beforeAcquire.run();
+            if (remoteHeld) {
+                success = true;
+            } else if (attempt.getAsBoolean()) {
+                remoteHeld = true;
+                handoffs = 0;
+                success = true;
+            }
+        } finally {
+            if (!success) {
+                local.unlock();
+            }
+        }
+        return success;
+    }
+
+    private void releaseRemote() {
+        remoteHeld = false;
+        handoffs = 0;
+        remote.unlock();
+    }
+
+    /**
+     * 分布式锁已经移交，但没有本地线程在等待了，则释放分布式锁
+     */
+    private void releaseIfIdle() {
+        if (remoteHeld && !local.hasQueuedThreads() && local.tryLock()) {
+            try {
+                if (remoteHeld && 1 == local.getHoldCount()) {
+                    releaseRemote();
+                }
+            } finally {
+                local.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.mallen.test.learning.dl.local;
+
+import org.mallen.test.learning.dl.DistributedLock;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * 两级锁工厂：为每个key创建一个{@link TwoLevelLock}，同一个JVM中竞争同一个key的线程先在本地锁上排队，
+ * 只有获取到本地锁的线程才会去竞争分布式锁，N个本地竞争者对于Redis/Zookeeper/Mysql来说只是1个竞争者。
+ * 每个key使用自己的本地锁，不同的key之间不会相互等待，也不会因为加锁顺序不同而在本地死锁；本地锁与两级锁一起创建，不再移除。
+ *
+ * @author mallen
+ * @date 6/11/20
+ */
+public class TwoLevelLockFactory<L extends DistributedLock> {
+    /**
+     * 默认最多连续移交分布式锁的次数，超过后必须释放分布式锁，让其他JVM有机会获取
+     */
+    private static final int DEFAULT_MAX_HANDOFFS = 16;
+    private final Function<String, L> remoteLockFactory;
+    private final int maxHandoffs;
+    private final boolean fair;
+    private final Consumer<? super L> beforeAcquire;
+    private final Map<String, TwoLevelLock> locks = new ConcurrentHashMap<>();
+
+    /**
+     * @param remoteLockFactory 根据key创建分布式锁，每个key只会调用一次，创建的锁由该key的所有本地线程共享
+     */
+    public TwoLevelLockFactory(Function<String, L> remoteLockFactory) {
+        this(remoteLockFactory, DEFAULT_MAX_HANDOFFS);
+    }
+
+    /**
+     * @param remoteLockFactory 根据key创建分布式锁，每个key只会调用一次，创建的锁由该key的所有本地线程共享
+     * @param maxHandoffs       最多连续移交分布式锁的次数，为0时不移交
+     */
+    public TwoLevelLockFactory(Function<String, L> remoteLockFactory, int maxHandoffs) {
+        this(remoteLockFactory, maxHandoffs, false, remote -> {
+        });
+    }
+
+    /**
+     * @param remoteLockFactory 根据key创建分布式锁，每个key只会调用一次，创建的锁由该key的所有本地线程共享
+     * @param maxHandoffs       最多连续移交分布式锁的次数，为0时不移交
+     * @param fair              本地锁是否为公平锁，是则本地线程按到达顺序获取
+     * @param beforeAcquire     最外层加锁时，由获取到本地锁的线程在获取（或者取走移交的）分布式锁之前调用，参数为key对应的分布式锁
+     */
+    public TwoLevelLockFactory(Function<String, L> remoteLockFactory, int maxHandoffs, boolean fair, Consumer<? super L> beforeAcquire) {
+        if (maxHandoffs < 0) {
+            throw new IllegalArgumentException("maxHandoffs不能小于0");
+        }
+        this.remoteLockFactory = remoteLockFactory;
+        this.maxHandoffs = maxHandoffs;
+        this.fair = fair;
+        this.beforeAcquire = beforeAcquire;
+    }
+
+    /**
+     * 获取key对应的两级锁，同一个key总是返回同一个实例
+     */
+    public TwoLevelLock getLock(String key) {
+        return locks.computeIfAbsent(key, k -> {
+            L remote = remoteLockFactory.apply(k);
+            return new TwoLevelLock(remote, maxHandoffs, fair, () -> beforeAcquire.accept(remote));
+        });
+    }
+}
@@ -0,0 +1,75 @@
+package org.mallen.test.learning.dl.local;
+
+import org.apache.zookeeper.ZooKeeper;
+import org.mallen.test.learning.dl.DistributedLock;
+import org.mallen.test.learning.dl.zookeeper.ZkFairLock;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 与ZkFairLockTest相同的卖票场景，但是所有Seller共享一个zookeeper连接：
+ * Seller先在本地排队，只有本地胜出的线程才会在zookeeper上创建节点，释放时直接把锁移交给下一个本地Seller。
+ *
+ * @author mallen
+ * @date 6/11/20
+ */
+public class TwoLevelLockTest {
+    private static Integer tickets = 100;
+    /**
+     * 收集已卖票信息，如果正常的话，set的size应该等于tickets
+     */
+    private static Set<Integer> soldTickets = new HashSet(100, 1);
+    private static final String ZOOKEEPER_CONNECT_STRING = "127.0.01:2181";
+    private static final String LOCK_PATH = "/mallen/test/dl";
+    private static final String LOCK_KEY = "tickets";
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        int sellerCount = 20;
+        CountDownLatch latch = new CountDownLatch(sellerCount);
+        ZooKeeper zooKeeper = new ZooKeeper(ZOOKEEPER_CONNECT_STRING, 1500, event -> {
+            System.out.println("接收到zookeeper事件：" + event.getType().name());
+        });
+        // ZkFairLock的持有者是临时节点，不与线程绑定，所以可以在本地线程之间移交
+        TwoLevelLockFactory factory = new TwoLevelLockFactory(key -> new ZkFairLock(zooKeeper, LOCK_PATH + "/" + key));
+        for (int i = 0; i < sellerCount; i++) {
+            Thread thread = new Thread(new Seller(latch, factory.getLock(LOCK_KEY)));
+            thread.setName("thread" + (i + 1));
+            thread.start();
+        }
+        latch.await();
+        zooKeeper.close();
+        // 打印卖出的票的数量，如果与tickets的数量不一样，说明存在多线程资源竞争的问题。
+        System.out.println("已卖票数量为：" + soldTickets.size());
+    }
+
+    static class Seller implements Runnable {
+        private DistributedLock lock;
+        private final CountDownLatch latch;
+
+        public Seller(CountDownLatch latch, DistributedLock lock) {
+            this.latch = latch;
+            this.lock = lock;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                lock.lock();
+                if (tickets > 0) {
+                    soldTickets.add(tickets);
+                    System.out.println(Thread.currentThread().getName() + "卖出票：" + tickets);
+                    tickets--;
+                    lock.unlock();
+                } else {
+                    lock.unlock();
+                    break;
+                }
+            }
+
+            latch.countDown();
+        }
+    }
+}
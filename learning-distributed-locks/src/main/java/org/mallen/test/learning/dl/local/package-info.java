@@ -0,0 +1,7 @@
+/**
+ * 本地锁与分布式锁组合使用：同一个JVM中的线程先在本地排队，只有本地胜出的线程才去竞争分布式锁
+ *
+ * @author mallen
+ * @date 6/11/20
+ */
+package org.mallen.test.learning.dl.local;
@@ -0,0 +1,180 @@
+package org.mallen.test.learning.dl.mysql.named;
+
+import org.mallen.test.learning.dl.DistributedLock;
+import org.mallen.test.learning.dl.LockingException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 使用mysql的命名锁（GET_LOCK/RELEASE_LOCK）实现分布式锁：
+ * 1. 命名锁属于数据库会话（连接），所以获取锁时从连接池中借出一个连接，一直占用到释放锁，期间不归还连接池；
+ * 2. 等待在服务端进行（GET_LOCK的超时参数），客户端不需要轮询，也不会像{@link org.mallen.test.learning.dl.mysql.table.MysqlTableLock}
+ * 一样每次竞争失败都抛出一个唯一键冲突的异常；
+ * 3. 连接断开时服务端自动释放锁，持有者可以通过{@link #isHeld()}检查锁是否已经丢失，释放时也会检查。
+ * 注意：每个持有或者等待中的锁都会占用一个连接，连接池的大小需要大于同时获取锁的数量；
+ * lock()在服务端等待，不能被interrupt打断。
+ *
+ * @author mallen
+ * @date 6/15/20
+ */
+public class MysqlNamedLock implements DistributedLock {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MysqlNamedLock.class);
+    /**
+     * 返回1表示获取成功，0表示超时，NULL表示出错（例如等待中被kill）。超时时间为秒，负数表示一直等待
+     */
+    private static final String STS_LOCK_SQL = "select GET_LOCK(?, ?)";
+    /**
+     * 返回1表示释放成功，0表示锁被其他会话持有，NULL表示锁不存在
+     */
+    private static final String STS_UNLOCK_SQL = "select RELEASE_LOCK(?)";
+    private static final String STS_HELD_SQL = "select IS_USED_LOCK(?) = CONNECTION_ID()";
+    /**
+     * mysql 5.7开始命名锁的名字最长64个字符
+     */
+    private static final int MAX_NAME_LENGTH = 64;
+    private final DataSource dataSource;
+    private final String name;
+    /**
+     * 持有锁期间占用的连接，没有持有锁时为null
+     */
+    private Connection connection;
+
+    public MysqlNamedLock(DataSource dataSource, String name) {
+        if (null == name || name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+            throw new LockingException("锁的名字不能为空，并且不能超过" + MAX_NAME_LENGTH + "个字符");
+        }
+        this.dataSource = dataSource;
+        this.name = name;
+    }
+
+    @Override
+    public synchronized void lock() throws LockingException {
+        if (!acquire(-1)) {
+            throw new LockingException("出错了，不能获取到锁");
+        }
+    }
+
+    @Override
+    public synchronized boolean tryLock() {
+        return acquire(0);
+    }
+
+    @Override
+    public synchronized boolean tryLock(long timeout, TimeUnit unit) throws LockingException {
+        // GET_LOCK的超时时间为秒，可以带小数
+        return acquire(Math.max(0, unit.toMillis(timeout)) / 1000.0);
+    }
+
+    @Override
+    public synchronized void unlock() throws LockingException {
+        if (null == connection) {
+            throw new LockingException("没有获取锁，不能解锁!");
+        }
+        Connection pinned = connection;
+        connection = null;
+        try (PreparedStatement preparedStatement = pinned.prepareStatement(STS_UNLOCK_SQL)) {
+            preparedStatement.setString(1, name);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                resultSet.next();
+                if (1 != resultSet.getInt(1)) {
+                    // 连接曾经断开过（连接池重连后会话已经不是原来的会话），锁已经被服务端释放
+                    throw new LockingException("锁" + name + "已经丢失，释放前可能已经被其他会话持有");
+                }
+            }
+        } catch (SQLException e) {
+            // 连接已经不可用，服务端会在会话结束时释放锁
+            throw new LockingException("释放锁时出现SQLException", e);
+        } finally {
+            close(pinned);
+        }
+    }
+
+    /**
+     * 命名锁与数据库会话绑定，连接断开时释放，没有固定的租约时间
+     */
+    @Override
+    public long getLeaseTime(TimeUnit unit) {
+        return -1;
+    }
+
+    /**
+     * 锁的持有者为当前实例占用的连接，与线程无关
+     */
+    @Override
+    public boolean isThreadBound() {
+        return false;
+    }
+
+    /**
+     * 检查锁是否仍然被当前实例持有：连接断开（会话结束）后锁会被服务端释放，可能已经被其他会话获取。
+     * 持有锁时间较长的业务可以在写入数据之前检查
+     */
+    public synchronized boolean isHeld() {
+        if (null == connection) {
+            return false;
+        }
+        try (PreparedStatement preparedStatement = connection.prepareStatement(STS_HELD_SQL)) {
+            preparedStatement.setString(1, name);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                return resultSet.next() && resultSet.getBoolean(1);
+            }
+        } catch (SQLException e) {
+            LOGGER.warn("检查锁{}时出现SQLException，认为锁已经丢失", name, e);
+            return false;
+        }
+    }
+
+    /**
+     * 借出连接并在服务端等待锁，获取成功时一直占用该连接，否则归还连接
+     *
+     * @param timeoutSeconds 负数表示一直等待
+     */
+    private boolean acquire(double timeoutSeconds) {
+        if (null != connection) {
+            throw new LockingException("已经持有锁了，请先释放锁");
+        }
+        Connection pinned = null;
+        boolean success = false;
+        try {
+            pinned = dataSource.getConnection();
+            // 命名锁不受事务影响，自动提交避免占用的连接上留下长事务
+            pinned.setAutoCommit(true);
+            try (PreparedStatement preparedStatement = pinned.prepareStatement(STS_LOCK_SQL)) {
+                preparedStatement.setString(1, name);
+                preparedStatement.setDouble(2, timeoutSeconds);
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    resultSet.next();
+                    int result = resultSet.getInt(1);
+                    if (resultSet.wasNull()) {
+                        throw new LockingException("获取锁" + name + "时出错，GET_LOCK返回NULL");
+                    }
+                    success = 1 == result;
+                }
+            }
+        } catch (SQLException e) {
+            throw new LockingException("获取锁时出现SQLException", e);
+        } finally {
+            if (success) {
+                connection = pinned;
+            } else if (null != pinned) {
+                close(pinned);
+            }
+        }
+        return success;
+    }
+
+    private void close(Connection pinned) {
+        try {
+            pinned.close();
+        } catch (SQLException e) {
+            LOGGER.warn("关闭连接失败", e);
+        }
+    }
+}
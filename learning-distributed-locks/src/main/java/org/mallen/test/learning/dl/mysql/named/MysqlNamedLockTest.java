@@ -0,0 +1,78 @@
+package org.mallen.test.learning.dl.mysql.named;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 运行该代码前请创建对应数据库，命名锁不需要建表
+ *
+ * @author mallen
+ * @date 6/15/20
+ */
+public class MysqlNamedLockTest {
+    private static Integer tickets = 100;
+    /**
+     * 收集已卖票信息，如果正常的话，set的size应该等于tickets
+     */
+    private static Set<Integer> soldTickets = new HashSet(100, 1);
+    private static final String LOCK_NAME = "mallen:test:dl";
+
+    public static void main(String[] args) throws InterruptedException {
+        int sellerCount = 3;
+        // 每个卖票线程持有或者等待锁时都会占用一个连接
+        HikariDataSource hikariDataSource = createDatasource(sellerCount);
+
+        CountDownLatch latch = new CountDownLatch(sellerCount);
+        for (int i = 0; i < sellerCount; i++) {
+            Thread thread = new Thread(new Seller(latch, new MysqlNamedLock(hikariDataSource, LOCK_NAME)));
+            thread.setName("thread" + (i + 1));
+            thread.start();
+        }
+        latch.await();
+        hikariDataSource.close();
+        // 打印卖出的票的数量，如果与tickets的数量不一样，说明存在多线程资源竞争的问题。
+        System.out.println("已卖票数量为：" + soldTickets.size());
+    }
+
+    static class Seller implements Runnable {
+        private final CountDownLatch latch;
+        private final MysqlNamedLock lock;
+
+        public Seller(CountDownLatch latch, MysqlNamedLock lock) {
+            this.latch = latch;
+            this.lock = lock;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                // 在服务端等待锁，不需要自旋
+                lock.lock();
+                if (tickets > 0) {
+                    soldTickets.add(tickets);
+                    System.out.println(Thread.currentThread().getName() + "卖出票：" + tickets);
+                    tickets--;
+                    lock.unlock();
+                } else {
+                    lock.unlock();
+                    break;
+                }
+            }
+            latch.countDown();
+        }
+    }
+
+    private static HikariDataSource createDatasource(int poolSize) {
+        HikariConfig hikariConfig = new HikariConfig();
+        hikariConfig.setJdbcUrl("jdbc:mysql://127.0.0.1:3306/DL_TEST?useUnicode=true&characterEncoding=utf-8&useSSL=false&verifyServerCertificate=false&allowPublicKeyRetrieval=true");
+        hikariConfig.setUsername("root");
+        hikariConfig.setPassword("root");
+        hikariConfig.setMaximumPoolSize(poolSize);
+
+        return new HikariDataSource(hikariConfig);
+    }
+}
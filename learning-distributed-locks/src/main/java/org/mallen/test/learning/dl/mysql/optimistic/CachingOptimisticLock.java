@@ -0,0 +1,175 @@
+package org.mallen.test.learning.dl.mysql.optimistic;
+
+import org.mallen.test.learning.dl.LockingException;
+
+import javax.sql.DataSource;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 带本地缓存的乐观锁：{@link #query(long)}先读本地缓存，缓存中没有或者已经过期时才查询数据库（read-through），
+ * 版本号作为缓存的有效性标识，缓存中只保留看到过的最新版本：
+ * <ul>
+ * <li>{@link #update(Tickets)}成功时，更新后的记录（resource和version + 1）直接写入缓存，不需要重新查询</li>
+ * <li>{@link #update(Tickets)}失败说明缓存的版本已经过期（被其他节点修改），立即重新查询并写入缓存</li>
+ * <li>条件扣减/归还（{@link #decrement(long, int)}、{@link #increment(long, int)}）不返回新的版本号，执行后把缓存替换为墓碑</li>
+ * </ul>
+ * 墓碑在查询时视为没有缓存，并且只能被它写入之后才开始的查询/更新的结果替换：
+ * 扣减之前读到的旧记录版本号比扣减后的小，但是缓存中可能没有可以比较的版本号，所以不能只靠比较版本号拒绝它。
+ * 其他节点的修改只能通过CAS失败或者缓存过期发现，所以读到的数据最多比数据库旧ttl，适合读多写少、允许短时间读到旧数据的场景；
+ * 由于update会校验版本号，使用旧数据做CAS只会失败，不会覆盖其他节点的修改。
+ *
+ * @author mallen
+ * @date 6/16/20
+ */
+public class CachingOptimisticLock extends OptimisticLock {
+    private final long ttlNanos;
+    private final Map<Long, Entry> cache = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param ttl 缓存的有效时间，超过该时间后重新查询数据库
+     */
+    public CachingOptimisticLock(DataSource dataSource, long ttl, TimeUnit unit) {
+        super(dataSource);
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("ttl必须大于0");
+        }
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * 查询指定记录的车票信息，优先返回缓存。每次返回新的对象，调用者可以直接修改后用于{@link #update(Tickets)}
+     *
+     * @return 记录不存在时返回null（不缓存）
+     * @throws LockingException 查询时出现SQLException
+     */
+    @Override
+    public Tickets query(long id) {
+        Entry entry = cache.get(id);
+        if (null != entry && !entry.tombstone && System.nanoTime() - entry.loadedAt < ttlNanos) {
+            hits.increment();
+            return entry.toTickets();
+        }
+        misses.increment();
+        return load(id);
+    }
+
+    @Override
+    public boolean update(Tickets tickets) {
+        Entry seen = cache.get(tickets.getId());
+        if (super.update(tickets)) {
+            store(seen, new Entry(tickets.getId(), tickets.getResource(), tickets.getVersion() + 1));
+            return true;
+        }
+        // 版本号冲突（或者更新出错），缓存中的版本已经过期
+        refresh(tickets.getId());
+        return false;
+    }
+
+    @Override
+    public boolean decrement(long id, int amount) {
+        try {
+            return super.decrement(id, amount);
+        } finally {
+            invalidate(id);
+        }
+    }
+
+    @Override
+    public void increment(long id, int amount) {
+        try {
+            super.increment(id, amount);
+        } finally {
+            invalidate(id);
+        }
+    }
+
+    /**
+     * 使缓存失效，下一次{@link #query(long)}查询数据库；在此之前开始的查询的结果不会再写入缓存
+     */
+    public void invalidate(long id) {
+        cache.put(id, new Entry(id));
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * CAS失败后重新查询；查询出错时只删除缓存，不影响update的返回值
+     */
+    private void refresh(long id) {
+        try {
+            load(id);
+        } catch (LockingException e) {
+            invalidate(id);
+        }
+    }
+
+    private Tickets load(long id) {
+        Entry seen = cache.get(id);
+        Tickets tickets = super.query(id);
+        if (null == tickets) {
+            invalidate(id);
+            return null;
+        }
+        store(seen, new Entry(tickets.getId(), tickets.getResource(), tickets.getVersion()));
+        return tickets;
+    }
+
+    /**
+     * 并发查询/更新时，只保留版本号更大的记录，以免旧的查询结果覆盖新的；
+     * 墓碑只能被访问数据库之前就已经看到它（seen）的结果替换，否则结果可能是扣减/归还之前读到的
+     *
+     * @param seen 访问数据库之前缓存中的记录
+     */
+    private void store(Entry seen, Entry entry) {
+        cache.merge(entry.id, entry, (old, latest) -> {
+            if (old.tombstone) {
+                return old == seen ? latest : old;
+            }
+            return latest.version >= old.version ? latest : old;
+        });
+    }
+
+    private static class Entry {
+        private final long id;
+        private final int resource;
+        private final int version;
+        private final long loadedAt = System.nanoTime();
+        /**
+         * 墓碑：缓存已经失效，没有可用的数据
+         */
+        private final boolean tombstone;
+
+        Entry(long id, int resource, int version) {
+            this.id = id;
+            this.resource = resource;
+            this.version = version;
+            this.tombstone = false;
+        }
+
+        Entry(long id) {
+            this.id = id;
+            this.resource = 0;
+            this.version = 0;
+            this.tombstone = true;
+        }
+
+        Tickets toTickets() {
+            Tickets tickets = new Tickets();
+            tickets.setId(id);
+            tickets.setResource(resource);
+            tickets.setVersion(version);
+            return tickets;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.mallen.test.learning.dl.mysql.optimistic;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 与OptimisticLockTest相同的卖票场景，每个线程每卖一张票之前先查询10次余票（读多写少），
+ * 卖完后打印卖出的票数以及缓存的命中次数、未命中次数（未命中时才会查询数据库）。
+ *
+ * 运行该代码前请创建对应数据库，并使用resources/MysqlOptimisticLock.sql初始化数据库表
+ *
+ * @author mallen
+ * @date 6/16/20
+ */
+public class CachingOptimisticLockTest {
+    private static final long RESOURCE_ID = 1;
+    private static final AtomicInteger SOLD = new AtomicInteger();
+
+    public static void main(String[] args) throws InterruptedException {
+        HikariDataSource hikariDataSource = createDatasource();
+        CachingOptimisticLock lock = new CachingOptimisticLock(hikariDataSource, 1, TimeUnit.SECONDS);
+
+        int sellerCount = 3;
+        CountDownLatch latch = new CountDownLatch(sellerCount);
+        for (int i = 0; i < sellerCount; i++) {
+            Thread thread = new Thread(() -> {
+                while (true) {
+                    for (int j = 0; j < 10; j++) {
+                        lock.query(RESOURCE_ID);
+                    }
+                    OptimisticLock.Tickets tickets = lock.query(RESOURCE_ID);
+                    if (null == tickets || 1 > tickets.getResource()) {
+                        break;
+                    }
+                    tickets.setResource(tickets.getResource() - 1);
+                    if (lock.update(tickets)) {
+                        System.out.println(Thread.currentThread().getName() + "卖出一张票，共卖出：" + SOLD.incrementAndGet());
+                    }
+                }
+                latch.countDown();
+            });
+            thread.setName("thread" + (i + 1));
+            thread.start();
+        }
+        latch.await();
+        System.out.println("已卖票数量为：" + SOLD.get() + "，缓存命中：" + lock.getHits() + "，未命中：" + lock.getMisses());
+        hikariDataSource.close();
+    }
+
+    private static HikariDataSource createDatasource() {
+        HikariConfig hikariConfig = new HikariConfig();
+        hikariConfig.setJdbcUrl("jdbc:mysql://127.0.0.1:3306/DL_TEST?useUnicode=true&characterEncoding=utf-8&useSSL=false&verifyServerCertificate=false&allowPublicKeyRetrieval=true");
+        hikariConfig.setUsername("root");
+        hikariConfig.setPassword("root");
+
+        return new HikariDataSource(hikariConfig);
+    }
+}
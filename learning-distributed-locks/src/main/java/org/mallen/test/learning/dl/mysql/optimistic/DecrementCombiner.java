@@ -0,0 +1,172 @@
+package org.mallen.test.learning.dl.mysql.optimistic;
+
+import org.mallen.test.learning.dl.LockingException;
+import org.mallen.test.learning.dl.local.FlatCombiner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 合并扣减：不使用版本号（query + update），直接执行条件扣减{@link OptimisticLock#decrement(long, int)}，一次访问数据库，没有CAS冲突重试。
+ * 与{@link org.mallen.test.learning.dl.local.CombiningLockExecutor}相同，使用flat combining（{@link FlatCombiner}）合并本地并发的请求：
+ * 调用者把请求放入队列后尝试成为合并者，合并者把队列中的请求（最多maxBatch个）的数量相加，执行一条update语句扣减总数，
+ * 在上一条语句执行期间到达的请求会合并到下一批中，所以并发越高，每条语句合并的请求越多，行锁的持有次数越少。
+ * 总数不足时查询剩余数量，按请求顺序分配给能够满足的请求，其余请求失败。
+ *
+ * @author mallen
+ * @date 6/16/20
+ */
+public class DecrementCombiner {
+    /**
+     * 默认每条语句最多合并的请求数量
+     */
+    private static final int DEFAULT_MAX_BATCH = 64;
+    /**
+     * 非合并者每次等待的最长时间，以免错过合并者退出时的唤醒
+     */
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private final OptimisticLock lock;
+    private final long id;
+    private final int maxBatch;
+    private final FlatCombiner<Request> combiner = new FlatCombiner<>(PARK_NANOS, TimeUnit.NANOSECONDS, this::combine);
+    private final LongAdder statements = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+
+    /**
+     * @param id 资源在optimistic_lock表中的记录id
+     */
+    public DecrementCombiner(OptimisticLock lock, long id) {
+        this(lock, id, DEFAULT_MAX_BATCH);
+    }
+
+    /**
+     * @param id       资源在optimistic_lock表中的记录id
+     * @param maxBatch 每条语句最多合并的请求数量
+     */
+    public DecrementCombiner(OptimisticLock lock, long id, int maxBatch) {
+        if (maxBatch <= 0) {
+            throw new IllegalArgumentException("maxBatch必须大于0");
+        }
+        this.lock = lock;
+        this.id = id;
+        this.maxBatch = maxBatch;
+    }
+
+    /**
+     * 扣减amount个资源，全部扣减成功或者全部不扣减。阻塞直到请求被执行，请求可能由其他线程执行
+     *
+     * @return 扣减成功返回true；剩余数量不足返回false
+     * @throws LockingException 访问数据库时出现异常
+     */
+    public boolean decrement(int amount) {
+        if (amount <= 0) {
+            throw new IllegalArgumentException("amount必须大于0");
+        }
+        Request request = new Request(amount);
+        combiner.submit(request);
+        try {
+            return request.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof LockingException ? (LockingException) e.getCause()
+                    : new LockingException("扣减资源失败", e.getCause());
+        }
+    }
+
+    /**
+     * 执行的update语句数量（不包括总数不足时的查询）
+     */
+    public long getStatements() {
+        return statements.sum();
+    }
+
+    /**
+     * 平均每条语句合并的请求数量
+     */
+    public double averageBatchSize() {
+        long count = statements.sum();
+        return 0 == count ? 0 : (double) requests.sum() / count;
+    }
+
+    /**
+     * 取出一批请求，扣减总数
+     */
+    private void combine(Queue<Request> queue) {
+        List<Request> batch = new ArrayList<>();
+        int sum = 0;
+        for (int i = 0; i < maxBatch; i++) {
+            Request request = queue.peek();
+            // 总数溢出时留到下一批
+            if (null == request || (!batch.isEmpty() && sum + request.amount < 0)) {
+                break;
+            }
+            queue.poll();
+            batch.add(request);
+            sum += request.amount;
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            if (execute(sum, batch.size())) {
+                complete(batch, true);
+                return;
+            }
+            settle(batch);
+        } catch (RuntimeException e) {
+            // 这一批请求都以失败结束，以免等待者一直等待
+            for (Request request : batch) {
+                request.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * 总数不足：查询剩余数量，按顺序选出能够满足的请求，扣减它们的总数；其他节点同时扣减导致失败时重新查询
+     */
+    private void settle(List<Request> batch) {
+        while (true) {
+            OptimisticLock.Tickets tickets = lock.query(id);
+            int remaining = null == tickets ? 0 : tickets.getResource();
+            List<Request> granted = new ArrayList<>();
+            List<Request> rejected = new ArrayList<>();
+            int sum = 0;
+            for (Request request : batch) {
+                if (request.amount <= remaining - sum) {
+                    granted.add(request);
+                    sum += request.amount;
+                } else {
+                    rejected.add(request);
+                }
+            }
+            if (granted.isEmpty() || execute(sum, granted.size())) {
+                complete(granted, true);
+                complete(rejected, false);
+                return;
+            }
+        }
+    }
+
+    private boolean execute(int sum, int count) {
+        statements.increment();
+        requests.add(count);
+        return lock.decrement(id, sum);
+    }
+
+    private static void complete(List<Request> requests, boolean result) {
+        for (Request request : requests) {
+            request.complete(result);
+        }
+    }
+
+    private static class Request extends FlatCombiner.Pending<Boolean> {
+        private final int amount;
+
+        Request(int amount) {
+            this.amount = amount;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.mallen.test.learning.dl.mysql.optimistic;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 与OptimisticLockTest相同的卖票场景，不再使用版本号，10个线程通过同一个合并扣减器卖票，
+ * 卖完后打印卖出的票数、执行的update语句数量以及平均每条语句合并的请求数量。
+ *
+ * 运行该代码前请创建对应数据库，并使用resources/MysqlOptimisticLock.sql初始化数据库表
+ *
+ * @author mallen
+ * @date 6/16/20
+ */
+public class DecrementCombinerTest {
+    private static final long RESOURCE_ID = 1;
+    private static final AtomicInteger SOLD = new AtomicInteger();
+
+    public static void main(String[] args) throws InterruptedException {
+        HikariDataSource hikariDataSource = createDatasource();
+        DecrementCombiner combiner = new DecrementCombiner(new OptimisticLock(hikariDataSource), RESOURCE_ID);
+
+        int sellerCount = 10;
+        CountDownLatch latch = new CountDownLatch(sellerCount);
+        for (int i = 0; i < sellerCount; i++) {
+            Thread thread = new Thread(() -> {
+                while (combiner.decrement(1)) {
+                    System.out.println(Thread.currentThread().getName() + "卖出一张票，共卖出：" + SOLD.incrementAndGet());
+                }
+                latch.countDown();
+            });
+            thread.setName("thread" + (i + 1));
+            thread.start();
+        }
+        latch.await();
+        System.out.println("已卖票数量为：" + SOLD.get() + "，update语句数量：" + combiner.getStatements() + "，平均每条语句合并的请求数量：" + combiner.averageBatchSize());
+        hikariDataSource.close();
+    }
+
+    private static HikariDataSource createDatasource() {
+        HikariConfig hikariConfig = new HikariConfig();
+        hikariConfig.setJdbcUrl("jdbc:mysql://127.0.0.1:3306/DL_TEST?useUnicode=true&characterEncoding=utf-8&useSSL=false&verifyServerCertificate=false&allowPublicKeyRetrieval=true");
+        hikariConfig.setUsername("root");
+        hikariConfig.setPassword("root");
+
+        return new HikariDataSource(hikariConfig);
+    }
+}
@@ -1,5 +1,7 @@
 package org.mallen.test.learning.dl.mysql.optimistic;
 
+import org.mallen.test.learning.dl.LockingException;
+
 import java.sql.*;
 
 import javax.sql.DataSource;
@@ -12,7 +14,13 @@ import javax.sql.DataSource;
  */
 public class OptimisticLock {
     private static final String SQL_QUERY = "select `id`, `resource`, `version` from `optimistic_lock`";
+    private static final String SQL_QUERY_BY_ID = "select `id`, `resource`, `version` from `optimistic_lock` where `id` = ?";
     private static final String STS_UPDATE = "update `optimistic_lock` set `resource` = ?, `version` = ? where id = ? and version = ? ";
+    /**
+     * 条件扣减：剩余数量足够时扣减，不需要先查询版本号；同时增加版本号，使并发的CAS（{@link #update(Tickets)}）失败
+     */
+    private static final String STS_DECREMENT = "update `optimistic_lock` set `resource` = `resource` - ?, `version` = `version` + 1 where `id` = ? and `resource` >= ?";
+    private static final String STS_INCREMENT = "update `optimistic_lock` set `resource` = `resource` + ?, `version` = `version` + 1 where `id` = ?";
     private DataSource dataSource;
 
     public OptimisticLock(DataSource dataSource) {
@@ -71,6 +79,31 @@ public class OptimisticLock {
         return tickets;
     }
 
+    /**
+     * 查询指定记录的车票信息
+     *
+     * @return 记录不存在时返回null
+     * @throws LockingException 查询时出现SQLException
+     */
+    public Tickets query(long id) {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(SQL_QUERY_BY_ID)) {
+            statement.setLong(1, id);
+            try (ResultSet rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                Tickets tickets = new Tickets();
+                tickets.setId(rs.getLong("id"));
+                tickets.setResource(rs.getInt("resource"));
+                tickets.setVersion(rs.getInt("version"));
+                return tickets;
+            }
+        } catch (SQLException e) {
+            throw new LockingException("查询车票信息时出现SQLException", e);
+        }
+    }
+
     public boolean update(Tickets tickets) {
         Connection connection = null;
         PreparedStatement statement = null;
@@ -110,6 +143,62 @@ public class OptimisticLock {
     }
 
 
+    /**
+     * 剩余数量不少于amount时扣减amount，一条update语句完成
+     *
+     * @return 扣减成功返回true；剩余数量不足或者记录不存在返回false
+     * @throws LockingException 更新时出现SQLException
+     */
+    public boolean decrement(long id, int amount) {
+        return execute(STS_DECREMENT, amount, id, true) > 0;
+    }
+
+    /**
+     * 归还amount个资源
+     *
+     * @throws LockingException 更新时出现SQLException
+     */
+    public void increment(long id, int amount) {
+        execute(STS_INCREMENT, amount, id, false);
+    }
+
+    /**
+     * 预留最多max个资源：先按max条件扣减，剩余数量不足max时扣减剩余的全部
+     *
+     * @return 实际预留的数量，已经没有剩余时返回0
+     * @throws LockingException 查询或者更新时出现SQLException
+     */
+    public int reserve(long id, int max) {
+        if (decrement(id, max)) {
+            return max;
+        }
+        while (true) {
+            Tickets tickets = query(id);
+            if (null == tickets || tickets.getResource() < 1) {
+                return 0;
+            }
+            int amount = Math.min(max, tickets.getResource());
+            if (decrement(id, amount)) {
+                return amount;
+            }
+            // 查询之后剩余数量被其他节点减少了，重新查询
+        }
+    }
+
+    private int execute(String sql, int amount, long id, boolean withMinimum) {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setInt(1, amount);
+            statement.setLong(2, id);
+            if (withMinimum) {
+                statement.setInt(3, amount);
+            }
+            return statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new LockingException("更新车票信息时出现SQLException", e);
+        }
+    }
+
     public static class Tickets {
         private Long id;
         private Integer resource;
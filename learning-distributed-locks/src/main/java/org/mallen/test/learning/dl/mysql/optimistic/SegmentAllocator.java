@@ -0,0 +1,185 @@
+package org.mallen.test.learning.dl.mysql.optimistic;
+
+import org.mallen.test.learning.dl.LockingException;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 号段预分配：每个节点通过{@link OptimisticLock#reserve(long, int)}一次预留segmentSize个资源（一个号段），
+ * 然后在本地通过CAS逐个分配，每卖出一个资源不再访问数据库，数据库操作减少为原来的1/segmentSize。
+ * 当前号段剩余数量低于prefetchThreshold时，在后台线程中预留下一个号段，当前号段用完时直接切换，不需要等待数据库。
+ * 关闭时把没有分配出去的资源（当前号段剩余的以及预留的下一个号段）归还到数据库。
+ * 代价是节点崩溃时最多丢失两个号段的资源（没有归还），并且各个节点卖出资源的顺序不再是全局有序的。
+ *
+ * @author mallen
+ * @date 6/16/20
+ */
+public class SegmentAllocator implements Closeable {
+    private final OptimisticLock lock;
+    private final long id;
+    private final int segmentSize;
+    private final int prefetchThreshold;
+    private final ExecutorService executor;
+    private volatile Segment current = new Segment(0);
+    /**
+     * 正在预留或者已经预留好的下一个号段，以下字段需要持有this才能修改
+     */
+    private CompletableFuture<Integer> next;
+    private boolean closed = false;
+    private final LongAdder reservations = new LongAdder();
+
+    /**
+     * @param id                资源在optimistic_lock表中的记录id
+     * @param segmentSize       每次预留的数量
+     * @param prefetchThreshold 当前号段剩余数量低于该值时预留下一个号段
+     */
+    public SegmentAllocator(OptimisticLock lock, long id, int segmentSize, int prefetchThreshold) {
+        if (segmentSize <= 0 || prefetchThreshold < 0 || prefetchThreshold >= segmentSize) {
+            throw new IllegalArgumentException("segmentSize必须大于0，prefetchThreshold必须在[0, segmentSize)之间");
+        }
+        this.lock = lock;
+        this.id = id;
+        this.segmentSize = segmentSize;
+        this.prefetchThreshold = prefetchThreshold;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "SegmentAllocator-" + id);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 分配一个资源，当前号段还有剩余时只需要一次CAS
+     *
+     * @return 分配成功返回true；数据库中已经没有剩余（或者已经关闭）时返回false
+     * @throws LockingException 预留号段时出现异常
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            Segment segment = current;
+            int left = segment.take();
+            if (left >= 0) {
+                if (left < prefetchThreshold) {
+                    prefetch();
+                }
+                return true;
+            }
+            if (!advance(segment)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 预留号段的次数，即访问数据库的次数
+     */
+    public long getReservations() {
+        return reservations.sum();
+    }
+
+    /**
+     * 归还没有分配出去的资源，之后{@link #tryAcquire()}返回false
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        int unused = current.drain();
+        CompletableFuture<Integer> pending = next;
+        next = null;
+        executor.shutdown();
+        try {
+            if (null != pending) {
+                unused += join(pending);
+            }
+        } finally {
+            // 预留下一个号段失败时也要归还当前号段剩余的资源，然后再抛出异常
+            if (unused > 0) {
+                lock.increment(id, unused);
+            }
+        }
+    }
+
+    /**
+     * 在后台预留下一个号段，已经在预留时不重复预留
+     */
+    private synchronized void prefetch() {
+        if (closed || null != next) {
+            return;
+        }
+        next = CompletableFuture.supplyAsync(this::reserve, executor);
+    }
+
+    /**
+     * 当前号段用完，切换到下一个号段，还没有预留时同步预留
+     *
+     * @return 没有更多资源时返回false
+     */
+    private synchronized boolean advance(Segment exhausted) {
+        if (current != exhausted) {
+            // 其他线程已经切换
+            return true;
+        }
+        if (closed) {
+            return false;
+        }
+        // 预留失败时下一次重新预留
+        CompletableFuture<Integer> pending = next;
+        next = null;
+        int amount = null == pending ? reserve() : join(pending);
+        if (0 == amount) {
+            return false;
+        }
+        current = new Segment(amount);
+        return true;
+    }
+
+    private int reserve() {
+        reservations.increment();
+        return lock.reserve(id, segmentSize);
+    }
+
+    private static int join(CompletableFuture<Integer> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof LockingException ? (LockingException) e.getCause()
+                    : new LockingException("预留号段失败", e.getCause());
+        }
+    }
+
+    private static class Segment {
+        private final AtomicInteger remaining;
+
+        Segment(int amount) {
+            this.remaining = new AtomicInteger(amount);
+        }
+
+        /**
+         * @return 分配后剩余的数量；已经没有剩余时返回-1
+         */
+        int take() {
+            while (true) {
+                int left = remaining.get();
+                if (left <= 0) {
+                    return -1;
+                }
+                if (remaining.compareAndSet(left, left - 1)) {
+                    return left - 1;
+                }
+            }
+        }
+
+        int drain() {
+            return remaining.getAndSet(0);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.mallen.test.learning.dl.mysql.optimistic;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 与OptimisticLockTest相同的卖票场景，模拟3个节点，每个节点一个号段分配器，每次预留10张票，
+ * 卖票时不再访问数据库。卖完后打印卖出的票数以及访问数据库的次数。
+ *
+ * 运行该代码前请创建对应数据库，并使用resources/MysqlOptimisticLock.sql初始化数据库表
+ *
+ * @author mallen
+ * @date 6/16/20
+ */
+public class SegmentAllocatorTest {
+    private static final long RESOURCE_ID = 1;
+    private static final AtomicInteger SOLD = new AtomicInteger();
+
+    public static void main(String[] args) throws InterruptedException {
+        HikariDataSource hikariDataSource = createDatasource();
+        OptimisticLock lock = new OptimisticLock(hikariDataSource);
+
+        int nodeCount = 3;
+        int sellerCount = 3;
+        SegmentAllocator[] allocators = new SegmentAllocator[nodeCount];
+        CountDownLatch latch = new CountDownLatch(nodeCount * sellerCount);
+        for (int i = 0; i < nodeCount; i++) {
+            // 剩余不到3张时预留下一个号段
+            allocators[i] = new SegmentAllocator(lock, RESOURCE_ID, 10, 3);
+            for (int j = 0; j < sellerCount; j++) {
+                Thread thread = new Thread(new Seller(latch, allocators[i]));
+                thread.setName("node" + (i + 1) + "-thread" + (j + 1));
+                thread.start();
+            }
+        }
+        latch.await();
+        long reservations = 0;
+        for (SegmentAllocator allocator : allocators) {
+            reservations += allocator.getReservations();
+            allocator.close();
+        }
+        System.out.println("已卖票数量为：" + SOLD.get() + "，访问数据库预留号段的次数为：" + reservations);
+        hikariDataSource.close();
+    }
+
+    static class Seller implements Runnable {
+        private final CountDownLatch latch;
+        private final SegmentAllocator allocator;
+
+        public Seller(CountDownLatch latch, SegmentAllocator allocator) {
+            this.latch = latch;
+            this.allocator = allocator;
+        }
+
+        @Override
+        public void run() {
+            while (allocator.tryAcquire()) {
+                System.out.println(Thread.currentThread().getName() + "卖出一张票，共卖出：" + SOLD.incrementAndGet());
+            }
+            latch.countDown();
+        }
+    }
+
+    private static HikariDataSource createDatasource() {
+        HikariConfig hikariConfig = new HikariConfig();
+        hikariConfig.setJdbcUrl("jdbc:mysql://127.0.0.1:3306/DL_TEST?useUnicode=true&characterEncoding=utf-8&useSSL=false&verifyServerCertificate=false&allowPublicKeyRetrieval=true");
+        hikariConfig.setUsername("root");
+        hikariConfig.setPassword("root");
+
+        return new HikariDataSource(hikariConfig);
+    }
+}
@@ -0,0 +1,165 @@
+package org.mallen.test.learning.dl.mysql.optimistic;
+
+import org.mallen.test.learning.dl.LockingException;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 分片的乐观锁库存：把一份资源（例如车票）拆分到optimistic_lock表的N条记录（分片）中，
+ * 每次卖票随机选择一个分片做CAS（query + update version），分片卖完或者CAS冲突时换下一个分片。
+ * 所有线程竞争同一条记录时，几乎所有的update都会因为版本号冲突而失败重试；拆分成N个分片后，冲突大约减少为原来的1/N，总数仍然准确。
+ * 已经卖完的分片在本地标记，之后不再查询；所有分片都标记为卖完时，查询一次总数确认（其他节点可能补充了库存）。
+ *
+ * @author mallen
+ * @date 6/16/20
+ */
+public class ShardedOptimisticLock {
+    private static final String STS_INSERT = "insert into `optimistic_lock`(`resource`, `version`) values(?, 1)";
+    private static final String SQL_TOTAL = "select sum(`resource`) from `optimistic_lock` where `id` in ";
+    private final DataSource dataSource;
+    private final OptimisticLock lock;
+    private final long[] slots;
+    private final String totalSql;
+    /**
+     * 本地标记已经卖完的分片，1表示卖完
+     */
+    private final AtomicIntegerArray exhausted;
+    /**
+     * CAS失败（版本号冲突）的次数
+     */
+    private final LongAdder conflicts = new LongAdder();
+
+    /**
+     * @param slots 分片对应的optimistic_lock记录id
+     */
+    public ShardedOptimisticLock(DataSource dataSource, long... slots) {
+        if (0 == slots.length) {
+            throw new IllegalArgumentException("至少需要一个分片");
+        }
+        this.dataSource = dataSource;
+        this.lock = new OptimisticLock(dataSource);
+        this.slots = slots.clone();
+        this.totalSql = SQL_TOTAL + "(" + String.join(", ", Collections.nCopies(slots.length, "?")) + ")";
+        this.exhausted = new AtomicIntegerArray(slots.length);
+    }
+
+    /**
+     * 在一个事务中插入shards条记录，把total平均分配到各个分片中
+     */
+    public static ShardedOptimisticLock create(DataSource dataSource, int total, int shards) {
+        if (shards <= 0 || total < 0) {
+            throw new IllegalArgumentException("shards必须大于0，total不能小于0");
+        }
+        long[] slots = new long[shards];
+        try (Connection connection = dataSource.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(STS_INSERT, Statement.RETURN_GENERATED_KEYS)) {
+                for (int i = 0; i < shards; i++) {
+                    // 余数分配给前面的分片
+                    statement.setInt(1, total / shards + (i < total % shards ? 1 : 0));
+                    statement.executeUpdate();
+                    try (ResultSet keys = statement.getGeneratedKeys()) {
+                        keys.next();
+                        slots[i] = keys.getLong(1);
+                    }
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            throw new LockingException("创建分片时出现SQLException", e);
+        }
+        return new ShardedOptimisticLock(dataSource, slots);
+    }
+
+    /**
+     * 卖出一个单位：从随机的分片开始，依次尝试各个分片
+     *
+     * @return 卖出的分片卖出后的信息（id为分片的记录id，resource为该分片剩余的数量）；全部卖完时返回null
+     */
+    public OptimisticLock.Tickets decrement() {
+        while (true) {
+            int start = ThreadLocalRandom.current().nextInt(slots.length);
+            boolean available = false;
+            for (int i = 0; i < slots.length; i++) {
+                int slot = (start + i) % slots.length;
+                if (1 == exhausted.get(slot)) {
+                    continue;
+                }
+                available = true;
+                OptimisticLock.Tickets tickets = tryDecrement(slot);
+                if (null != tickets) {
+                    return tickets;
+                }
+            }
+            if (!available) {
+                // 所有分片都标记为卖完，确认总数后清除标记重新尝试
+                if (total() <= 0) {
+                    return null;
+                }
+                for (int i = 0; i < slots.length; i++) {
+                    exhausted.set(i, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * 所有分片剩余数量的总和
+     */
+    public int total() {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(totalSql)) {
+            for (int i = 0; i < slots.length; i++) {
+                statement.setLong(i + 1, slots[i]);
+            }
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        } catch (SQLException e) {
+            throw new LockingException("查询总数时出现SQLException", e);
+        }
+    }
+
+    public long[] getSlots() {
+        return Arrays.copyOf(slots, slots.length);
+    }
+
+    public long getConflicts() {
+        return conflicts.sum();
+    }
+
+    /**
+     * 在一个分片上做一次CAS
+     *
+     * @return 成功时返回卖出后的分片信息；分片已经卖完或者CAS冲突时返回null（冲突时由调用者换下一个分片，分散竞争）
+     */
+    private OptimisticLock.Tickets tryDecrement(int slot) {
+        OptimisticLock.Tickets tickets = lock.query(slots[slot]);
+        if (null == tickets || tickets.getResource() < 1) {
+            exhausted.set(slot, 1);
+            return null;
+        }
+        tickets.setResource(tickets.getResource() - 1);
+        if (lock.update(tickets)) {
+            return tickets;
+        }
+        conflicts.increment();
+        return null;
+    }
+}
@@ -0,0 +1,57 @@
+package org.mallen.test.learning.dl.mysql.optimistic;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 与OptimisticLockTest相同的卖票场景，车票拆分到多个分片中。
+ * 分别使用1个分片和8个分片卖100张票，对比CAS冲突的次数。
+ *
+ * 运行该代码前请创建对应数据库，并使用resources/MysqlOptimisticLock.sql初始化数据库表
+ *
+ * @author mallen
+ * @date 6/16/20
+ */
+public class ShardedOptimisticLockTest {
+    private static final int TICKETS = 100;
+
+    public static void main(String[] args) throws InterruptedException {
+        HikariDataSource hikariDataSource = createDatasource();
+        for (int shards : new int[]{1, 8}) {
+            ShardedOptimisticLock lock = ShardedOptimisticLock.create(hikariDataSource, TICKETS, shards);
+            // 分片id + 分片内的票号唯一标识一张票
+            Set<String> soldTickets = new HashSet<>(TICKETS * 2);
+            int sellerCount = 10;
+            CountDownLatch latch = new CountDownLatch(sellerCount);
+            for (int i = 0; i < sellerCount; i++) {
+                Thread thread = new Thread(() -> {
+                    OptimisticLock.Tickets tickets;
+                    while (null != (tickets = lock.decrement())) {
+                        synchronized (soldTickets) {
+                            soldTickets.add(tickets.getId() + "-" + (tickets.getResource() + 1));
+                        }
+                    }
+                    latch.countDown();
+                });
+                thread.setName("thread" + (i + 1));
+                thread.start();
+            }
+            latch.await();
+            System.out.println(shards + "个分片：已卖票数量为：" + soldTickets.size() + "，剩余：" + lock.total() + "，CAS冲突次数：" + lock.getConflicts());
+        }
+        hikariDataSource.close();
+    }
+
+    private static HikariDataSource createDatasource() {
+        HikariConfig hikariConfig = new HikariConfig();
+        hikariConfig.setJdbcUrl("jdbc:mysql://127.0.0.1:3306/DL_TEST?useUnicode=true&characterEncoding=utf-8&useSSL=false&verifyServerCertificate=false&allowPublicKeyRetrieval=true");
+        hikariConfig.setUsername("root");
+        hikariConfig.setPassword("root");
+
+        return new HikariDataSource(hikariConfig);
+    }
+}
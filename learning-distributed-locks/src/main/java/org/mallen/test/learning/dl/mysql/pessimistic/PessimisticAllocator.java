@@ -0,0 +1,156 @@
+package org.mallen.test.learning.dl.mysql.pessimistic;
+
+import org.mallen.test.learning.dl.LockingException;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 基于mysql悲观锁（select ... for update）的资源分配：pessimistic_item表中每一行是一个资源（座位、任务），
+ * 在一个事务中锁定前N个未被领取的行，把owner更新为自己，然后提交。
+ * 普通的for update会等待其他事务锁定的行，所有节点都竞争最前面的几行，相当于串行执行；
+ * 使用SKIP LOCKED时跳过其他事务已经锁定的行，直接锁定后面的空闲行，多个节点并行领取不同的行，没有锁等待；
+ * 使用NOWAIT时遇到已经锁定的行立即失败，适合不希望等待、由调用者决定是否重试的场景。
+ * SKIP LOCKED和NOWAIT需要mysql 8.0。
+ *
+ * 运行前请使用resources/MysqlPessimisticLock.sql初始化数据库表
+ *
+ * @author mallen
+ * @date 6/16/20
+ */
+public class PessimisticAllocator {
+    private static final String SQL_SELECT_SKIP_LOCKED = "select `id` from `pessimistic_item` where `owner` is null order by `id` limit ? for update skip locked";
+    private static final String SQL_SELECT_NOWAIT = "select `id` from `pessimistic_item` where `owner` is null order by `id` limit ? for update nowait";
+    private static final String STS_CLAIM = "update `pessimistic_item` set `owner` = ?, `claimed_at` = ? where `id` in ";
+    private static final String STS_RELEASE = "update `pessimistic_item` set `owner` = null, `claimed_at` = null where `owner` = ? and `id` in ";
+    /**
+     * mysql的ER_LOCK_NOWAIT：NOWAIT遇到已经被锁定的行
+     */
+    private static final int ER_LOCK_NOWAIT = 3572;
+    private final DataSource dataSource;
+    private final String owner;
+
+    public PessimisticAllocator(DataSource dataSource) {
+        this(dataSource, UUID.randomUUID().toString());
+    }
+
+    /**
+     * @param owner 领取者标识，写入owner字段，释放时只能释放自己领取的行
+     */
+    public PessimisticAllocator(DataSource dataSource, String owner) {
+        this.dataSource = dataSource;
+        this.owner = owner;
+    }
+
+    /**
+     * 领取最多count个空闲资源，跳过其他事务正在领取的行
+     *
+     * @return 领取到的资源id，没有空闲资源时返回空列表
+     * @throws LockingException 访问数据库时出现SQLException
+     */
+    public List<Long> claim(int count) {
+        try {
+            return claim(SQL_SELECT_SKIP_LOCKED, count);
+        } catch (SQLException e) {
+            throw new LockingException("领取资源时出现SQLException", e);
+        }
+    }
+
+    /**
+     * 领取最多count个空闲资源，遇到其他事务正在领取的行时立即放弃，不等待行锁
+     *
+     * @return 领取到的资源id；没有空闲资源，或者有其他事务正在领取时返回空列表
+     * @throws LockingException 访问数据库时出现其他SQLException
+     */
+    public List<Long> claimNoWait(int count) {
+        try {
+            return claim(SQL_SELECT_NOWAIT, count);
+        } catch (SQLException e) {
+            if (ER_LOCK_NOWAIT == e.getErrorCode()) {
+                return Collections.emptyList();
+            }
+            throw new LockingException("领取资源时出现SQLException", e);
+        }
+    }
+
+    /**
+     * 归还自己领取的资源，其他领取者的资源不受影响
+     *
+     * @return 实际归还的数量
+     * @throws LockingException 访问数据库时出现SQLException
+     */
+    public int release(Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(STS_RELEASE + placeholders(ids.size()))) {
+            statement.setString(1, owner);
+            int index = 2;
+            for (Long id : ids) {
+                statement.setLong(index++, id);
+            }
+            return statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new LockingException("归还资源时出现SQLException", e);
+        }
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+     * 在一个事务中锁定空闲的行并更新owner，事务提交后释放行锁
+     */
+    private List<Long> claim(String selectSql, int count) throws SQLException {
+        if (count <= 0) {
+            throw new IllegalArgumentException("count必须大于0");
+        }
+        try (Connection connection = dataSource.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                List<Long> ids = new ArrayList<>(count);
+                try (PreparedStatement statement = connection.prepareStatement(selectSql)) {
+                    statement.setInt(1, count);
+                    try (ResultSet rs = statement.executeQuery()) {
+                        while (rs.next()) {
+                            ids.add(rs.getLong(1));
+                        }
+                    }
+                }
+                if (!ids.isEmpty()) {
+                    try (PreparedStatement statement = connection.prepareStatement(STS_CLAIM + placeholders(ids.size()))) {
+                        statement.setString(1, owner);
+                        statement.setLong(2, System.currentTimeMillis());
+                        int index = 3;
+                        for (Long id : ids) {
+                            statement.setLong(index++, id);
+                        }
+                        statement.executeUpdate();
+                    }
+                }
+                connection.commit();
+                return ids;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    private static String placeholders(int count) {
+        return "(" + String.join(", ", Collections.nCopies(count, "?")) + ")";
+    }
+}
@@ -0,0 +1,55 @@
+package org.mallen.test.learning.dl.mysql.pessimistic;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 10个线程（每个线程模拟一个节点）并行领取座位，每次领取3个，领完后打印领取的座位数量，正常的话应该等于座位总数且没有重复。
+ *
+ * 运行该代码前请创建对应数据库（mysql 8.0），并使用resources/MysqlPessimisticLock.sql初始化数据库表
+ *
+ * @author mallen
+ * @date 6/16/20
+ */
+public class PessimisticAllocatorTest {
+    public static void main(String[] args) throws InterruptedException {
+        HikariDataSource hikariDataSource = createDatasource();
+        Set<Long> claimed = ConcurrentHashMap.newKeySet();
+
+        int workerCount = 10;
+        CountDownLatch latch = new CountDownLatch(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            PessimisticAllocator allocator = new PessimisticAllocator(hikariDataSource, "worker" + (i + 1));
+            Thread thread = new Thread(() -> {
+                List<Long> ids;
+                while (!(ids = allocator.claim(3)).isEmpty()) {
+                    for (Long id : ids) {
+                        if (!claimed.add(id)) {
+                            System.out.println("座位" + id + "被重复领取");
+                        }
+                    }
+                    System.out.println(allocator.getOwner() + "领取座位：" + ids);
+                }
+                latch.countDown();
+            });
+            thread.start();
+        }
+        latch.await();
+        System.out.println("已领取座位数量为：" + claimed.size());
+        hikariDataSource.close();
+    }
+
+    private static HikariDataSource createDatasource() {
+        HikariConfig hikariConfig = new HikariConfig();
+        hikariConfig.setJdbcUrl("jdbc:mysql://127.0.0.1:3306/DL_TEST?useUnicode=true&characterEncoding=utf-8&useSSL=false&verifyServerCertificate=false&allowPublicKeyRetrieval=true");
+        hikariConfig.setUsername("root");
+        hikariConfig.setPassword("root");
+
+        return new HikariDataSource(hikariConfig);
+    }
+}
@@ -0,0 +1,181 @@
+package org.mallen.test.learning.dl.mysql.table;
+
+import org.mallen.test.learning.dl.DistributedLock;
+import org.mallen.test.learning.dl.LockingException;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 带租约的mysql表锁：与{@link MysqlTableLock}使用同一张表，加锁时同时写入过期时间expire_at。
+ * 1. 加锁只需要一条insert ... on duplicate key update语句：记录不存在时插入；记录已经过期时在同一条语句中接管（更新为自己）；
+ * 否则不做任何修改。影响行数为0说明被其他线程持有，否则在同一个连接上读回记录，持有者和加锁时间都是自己写入的值才算获取成功，竞争失败时不会抛出唯一键冲突的异常；
+ * 2. 持有者崩溃后，锁最多在租约时间后可以被其他线程接管，不需要人工删除记录；过期的记录由{@link MysqlLockReaper}定期批量删除；
+ * 3. 等待锁时使用指数退避（带随机抖动），竞争激烈时逐渐降低重试频率，减少对唯一索引的冲击。
+ * 注意：
+ * 1. mysql的JDBC驱动默认返回匹配的行数（CLIENT_FOUND_ROWS），此时没有修改的记录也会返回1，所以不能只根据影响行数判断；
+ * 在连接串中设置useAffectedRows=true后，竞争失败时不需要读回记录；
+ * 2. 过期时间使用客户端的时间，各个客户端之间的时钟误差需要远小于租约时间；
+ * 3. 持有锁的时间可能超过租约时间时，需要定期调用{@link #renew()}续时。
+ *
+ * @author mallen
+ * @date 6/15/20
+ */
+public class MysqlLeaseLock implements DistributedLock {
+    /**
+     * 只有记录已经过期时才更新，每个字段都只根据更新前的expire_at判断，并且expire_at最后更新，
+     * 所以不管数据库按顺序（mysql）还是按更新前的值（H2等）计算各个字段，结果都相同
+     */
+    private static final String STS_LOCK_SQL = "insert into `database_lock`(`lock`, `lock_at`, `expire_at`, `locker`, `description`) values(?, ?, ?, ?, ?) " +
+            "on duplicate key update " +
+            "`locker` = case when `expire_at` < ? then values(`locker`) else `locker` end, " +
+            "`lock_at` = case when `expire_at` < ? then values(`lock_at`) else `lock_at` end, " +
+            "`description` = case when `expire_at` < ? then values(`description`) else `description` end, " +
+            "`expire_at` = case when `expire_at` < ? then values(`expire_at`) else `expire_at` end";
+    private static final String STS_SELECT_SQL = "select `locker`, `lock_at` from `database_lock` where `lock` = ?";
+    private static final String STS_RENEW_SQL = "update `database_lock` set `expire_at` = ? where `lock` = ? and `locker` = ?";
+    private static final String STS_UNLOCK_SQL = "delete from `database_lock` where `lock` = ? and `locker` = ?";
+    /**
+     * 退避时间的初始值和最大值：1ms、100ms
+     */
+    private static final long MIN_BACKOFF = 1;
+    private static final long MAX_BACKOFF = 100;
+    private final DataSource dataSource;
+    private final int lockId;
+    private final String desc;
+    private final String id;
+    private final long leaseMillis;
+
+    public MysqlLeaseLock(DataSource dataSource, int lockId, long leaseTime, TimeUnit unit) {
+        this(dataSource, lockId, leaseTime, unit, null);
+    }
+
+    public MysqlLeaseLock(DataSource dataSource, int lockId, long leaseTime, TimeUnit unit, String desc) {
+        if (leaseTime <= 0) {
+            throw new LockingException("租约时间必须大于0");
+        }
+        this.dataSource = dataSource;
+        this.lockId = lockId;
+        this.desc = desc;
+        this.id = UUID.randomUUID().toString();
+        this.leaseMillis = unit.toMillis(leaseTime);
+    }
+
+    @Override
+    public void lock() throws LockingException {
+        if (!tryLock(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
+            // tryLock被interrupt时已经恢复了中断标记，这里不清除
+            if (Thread.currentThread().isInterrupted()) {
+                throw new LockingException("获取锁时出现InterruptedException");
+            }
+            throw new LockingException("出错了，不能获取到锁");
+        }
+    }
+
+    @Override
+    public boolean tryLock() {
+        long now = System.currentTimeMillis();
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(STS_LOCK_SQL)) {
+            preparedStatement.setInt(1, lockId);
+            preparedStatement.setLong(2, now);
+            preparedStatement.setLong(3, now + leaseMillis);
+            preparedStatement.setString(4, getLocker());
+            preparedStatement.setString(5, desc);
+            for (int i = 6; i <= 9; i++) {
+                preparedStatement.setLong(i, now);
+            }
+            // 0：锁被其他线程持有；否则可能是插入了新记录、接管了过期的记录，也可能只是驱动返回了匹配的行数
+            if (0 == preparedStatement.executeUpdate()) {
+                return false;
+            }
+            return isLockedBy(connection, getLocker(), now);
+        } catch (SQLException e) {
+            throw new LockingException("获取锁时出现SQLException", e);
+        }
+    }
+
+    /**
+     * 在指定时间内获取锁，每次失败后等待的时间翻倍（最多{@link #MAX_BACKOFF}毫秒），并在[backoff/2, backoff]之间随机，
+     * 避免等待者同时重试。被interrupt时返回false
+     */
+    @Override
+    public boolean tryLock(long timeout, TimeUnit unit) throws LockingException {
+        long start = System.nanoTime();
+        long timeoutNanos = unit.toNanos(timeout);
+        long backoff = MIN_BACKOFF;
+        while (!tryLock()) {
+            long remaining = timeoutNanos - (System.nanoTime() - start);
+            if (remaining <= 0) {
+                return false;
+            }
+            long sleep = TimeUnit.MILLISECONDS.toNanos(backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.min(remaining, Math.max(sleep, 1)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            backoff = Math.min(MAX_BACKOFF, backoff * 2);
+        }
+        return true;
+    }
+
+    @Override
+    public void unlock() throws LockingException {
+        if (0 == execute(STS_UNLOCK_SQL, false)) {
+            throw new LockingException("锁已经过期，可能已经被其他线程获取");
+        }
+    }
+
+    /**
+     * 把过期时间延长到当前时间加上租约时间
+     *
+     * @return 锁仍然被当前线程持有时返回true；锁已经被其他线程接管或者删除时返回false
+     */
+    public boolean renew() throws LockingException {
+        return execute(STS_RENEW_SQL, true) > 0;
+    }
+
+    @Override
+    public long getLeaseTime(TimeUnit unit) {
+        return unit.convert(leaseMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 读回锁记录，确认是否由自己在lockAt时写入
+     */
+    private boolean isLockedBy(Connection connection, String locker, long lockAt) throws SQLException {
+        try (PreparedStatement preparedStatement = connection.prepareStatement(STS_SELECT_SQL)) {
+            preparedStatement.setInt(1, lockId);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                return resultSet.next() && locker.equals(resultSet.getString(1)) && lockAt == resultSet.getLong(2);
+            }
+        }
+    }
+
+    private int execute(String sql, boolean withExpireAt) {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+            int index = 1;
+            if (withExpireAt) {
+                preparedStatement.setLong(index++, System.currentTimeMillis() + leaseMillis);
+            }
+            preparedStatement.setInt(index++, lockId);
+            preparedStatement.setString(index, getLocker());
+            return preparedStatement.executeUpdate();
+        } catch (SQLException e) {
+            throw new LockingException("操作锁时出现SQLException", e);
+        }
+    }
+
+    private String getLocker() {
+        return id + ":" + Thread.currentThread().getId();
+    }
+}
@@ -0,0 +1,90 @@
+package org.mallen.test.learning.dl.mysql.table;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 运行该代码前请创建对应数据库，并使用resources/MysqlTableLock.sql初始化数据库表。
+ * 第一个卖票线程卖出一张票后模拟崩溃（不释放锁），其他卖票线程在租约过期后接管锁，继续卖票
+ *
+ * @author mallen
+ * @date 6/15/20
+ */
+public class MysqlLeaseLockTest {
+    private static Integer tickets = 100;
+    /**
+     * 收集已卖票信息，如果正常的话，set的size应该等于tickets
+     */
+    private static Set<Integer> soldTickets = new HashSet(100, 1);
+    private static HikariDataSource hikariDataSource;
+
+    public static void main(String[] args) throws InterruptedException {
+        hikariDataSource = createDatasource();
+        MysqlLockReaper reaper = new MysqlLockReaper(hikariDataSource, 1, TimeUnit.SECONDS, 100);
+        int lockId = 2;
+
+        int sellerCount = 3;
+        CountDownLatch latch = new CountDownLatch(sellerCount);
+        for (int i = 0; i < sellerCount; i++) {
+            Thread thread = new Thread(new Seller(latch, new MysqlLeaseLock(hikariDataSource, lockId, 2, TimeUnit.SECONDS), 0 == i));
+            thread.setName("thread" + (i + 1));
+            thread.start();
+        }
+        latch.await();
+        reaper.close();
+        hikariDataSource.close();
+        // 打印卖出的票的数量，如果与tickets的数量不一样，说明存在多线程资源竞争的问题。
+        System.out.println("已卖票数量为：" + soldTickets.size());
+    }
+
+    static class Seller implements Runnable {
+        private final CountDownLatch latch;
+        private final MysqlLeaseLock lock;
+        /**
+         * 是否在卖出一张票后模拟崩溃
+         */
+        private final boolean crash;
+
+        public Seller(CountDownLatch latch, MysqlLeaseLock lock, boolean crash) {
+            this.latch = latch;
+            this.lock = lock;
+            this.crash = crash;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                lock.lock();
+                if (tickets > 0) {
+                    soldTickets.add(tickets);
+                    System.out.println(Thread.currentThread().getName() + "卖出票：" + tickets);
+                    tickets--;
+                    if (crash) {
+                        System.out.println(Thread.currentThread().getName() + "崩溃了，没有释放锁");
+                        break;
+                    }
+                    lock.unlock();
+                } else {
+                    lock.unlock();
+                    break;
+                }
+            }
+            latch.countDown();
+        }
+    }
+
+    private static HikariDataSource createDatasource() {
+        HikariConfig hikariConfig = new HikariConfig();
+        // 需要通过影响行数判断insert ... on duplicate key update是否获取到锁
+        hikariConfig.setJdbcUrl("jdbc:mysql://127.0.0.1:3306/DL_TEST?useUnicode=true&characterEncoding=utf-8&useSSL=false&verifyServerCertificate=false&allowPublicKeyRetrieval=true&useAffectedRows=true");
+        hikariConfig.setUsername("root");
+        hikariConfig.setPassword("root");
+
+        return new HikariDataSource(hikariConfig);
+    }
+}
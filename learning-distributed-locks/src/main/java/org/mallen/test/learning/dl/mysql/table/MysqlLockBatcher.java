@@ -0,0 +1,430 @@
+package org.mallen.test.learning.dl.mysql.table;
+
+import org.mallen.test.learning.dl.DistributedLock;
+import org.mallen.test.learning.dl.LockingException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 批量提交（group commit）{@link MysqlTableLock}的加锁和解锁请求：多个线程的请求先放入队列，
+ * 由一个后台线程每隔window或者积累了maxBatchSize个请求时，在一个连接中分两个事务批量执行：
+ * 1. 解锁：select ... for update查出哪些(lock, locker)存在，再用一条delete ... where (lock, locker) in (...)删除，然后提交；
+ * 2. 加锁：同一批中同一个锁只保留第一个请求（其他请求直接失败），然后用一条多行的insert ignore插入，
+ * 影响行数等于请求数（全部成功）或者为0（全部失败）时直接得到结果，否则再查询一次各个锁的持有者。
+ * 解锁先于加锁提交，所以同一批中释放的锁可以马上被其他请求获取；加锁失败（例如死锁）也不会回滚已经完成的解锁，否则记录不会过期，锁将永远无法释放。
+ * 多个JVM的批量语句锁定的记录可能交叉，InnoDB检测到死锁时会回滚其中一个事务，此时重试该事务（最多{@link #MAX_DEADLOCK_RETRIES}次）。
+ * 每个请求最多多等待window，换来的是每批只需要一次连接借出、几条语句和两次提交，适合大量不同的锁以很高的频率加锁/解锁的场景。
+ * 与{@link MysqlTableLock}使用同一张表，记录不会过期。
+ *
+ * @author mallen
+ * @date 6/16/20
+ */
+public class MysqlLockBatcher implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MysqlLockBatcher.class);
+    private static final String INSERT_SQL = "insert ignore into `database_lock`(`lock`, `lock_at`, `locker`, `description`) values ";
+    private static final String SELECT_LOCKER_SQL = "select `lock`, `locker` from `database_lock` where `lock` in ";
+    private static final String SELECT_HELD_SQL = "select `lock`, `locker` from `database_lock` where (`lock`, `locker`) in ";
+    private static final String DELETE_SQL = "delete from `database_lock` where (`lock`, `locker`) in ";
+    /**
+     * 获取锁失败后的退避时间：初始1ms，最多50ms（与{@link MysqlTableLock}的自旋间隔相同）
+     */
+    private static final long MIN_BACKOFF = 1;
+    private static final long MAX_BACKOFF = 50;
+    /**
+     * 事务因为死锁被回滚后的最多重试次数
+     */
+    private static final int MAX_DEADLOCK_RETRIES = 3;
+    /**
+     * mysql的ER_LOCK_DEADLOCK
+     */
+    private static final int ER_LOCK_DEADLOCK = 1213;
+    private final DataSource dataSource;
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread flusher;
+    private volatile boolean running = true;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+
+    /**
+     * @param window       收集请求的时间窗口，从一批的第一个请求开始计算
+     * @param unit         时间单位
+     * @param maxBatchSize 积累到该数量的请求时立即执行
+     */
+    public MysqlLockBatcher(DataSource dataSource, long window, TimeUnit unit, int maxBatchSize) {
+        if (window <= 0 || maxBatchSize <= 0) {
+            throw new IllegalArgumentException("window和maxBatchSize必须大于0");
+        }
+        this.dataSource = dataSource;
+        this.windowNanos = unit.toNanos(window);
+        this.maxBatchSize = maxBatchSize;
+        this.flusher = new Thread(this::run, "MysqlLockBatcher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * 获取lockId对应的锁，锁的持有者为调用线程（与{@link MysqlTableLock}相同）。每次调用返回一个新的对象
+     */
+    public DistributedLock getLock(int lockId) {
+        return new BatchedLock(lockId);
+    }
+
+    /**
+     * 异步尝试获取锁，只尝试一次
+     *
+     * @return 获取成功时完成为true
+     */
+    public CompletableFuture<Boolean> tryLockAsync(int lockId, String locker, String desc) {
+        return submit(new Request(true, lockId, locker, desc));
+    }
+
+    /**
+     * 异步释放锁
+     *
+     * @return 删除了锁记录时完成为true；锁不存在或者不属于locker时完成为false
+     */
+    public CompletableFuture<Boolean> unlockAsync(int lockId, String locker) {
+        return submit(new Request(false, lockId, locker, null));
+    }
+
+    /**
+     * 平均每批执行的请求数量
+     */
+    public double averageBatchSize() {
+        long batchCount = batches.sum();
+        return 0 == batchCount ? 0 : (double) requests.sum() / batchCount;
+    }
+
+    /**
+     * 停止后台线程，队列中还没有执行的请求以异常完成
+     */
+    @Override
+    public void close() {
+        running = false;
+        flusher.interrupt();
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        failAll(drain(), new LockingException("MysqlLockBatcher已经关闭"));
+    }
+
+    private CompletableFuture<Boolean> submit(Request request) {
+        if (!running) {
+            throw new LockingException("MysqlLockBatcher已经关闭");
+        }
+        queue.add(request);
+        // 检查之后、放入队列之前可能已经关闭并取走了队列中的请求，此时自己从队列中删除；删除失败说明已经被close取走并以异常完成
+        if (!running && queue.remove(request)) {
+            throw new LockingException("MysqlLockBatcher已经关闭");
+        }
+        return request.future;
+    }
+
+    private void run() {
+        while (running) {
+            List<Request> batch = new ArrayList<>(maxBatchSize);
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    // 先取走已经在队列中的请求，窗口结束后不再等待
+                    if (0 == queue.drainTo(batch, maxBatchSize - batch.size()) && remaining > 0) {
+                        Request request = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (null != request) {
+                            batch.add(request);
+                        }
+                    }
+                    if (deadline - System.nanoTime() <= 0) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // close：已经取出的请求以异常完成
+                failAll(batch, new LockingException("MysqlLockBatcher已经关闭"));
+                return;
+            }
+            execute(batch);
+        }
+    }
+
+    private void execute(List<Request> batch) {
+        requests.add(batch.size());
+        batches.increment();
+        List<Request> unlocks = new ArrayList<>();
+        // 同一个锁只保留第一个加锁请求；按lockId排序，减少多个JVM的批量语句交叉锁定记录的机会
+        Map<Integer, Request> locks = new TreeMap<>();
+        List<Request> losers = new ArrayList<>();
+        for (Request request : batch) {
+            if (!request.lock) {
+                unlocks.add(request);
+            } else if (null != locks.putIfAbsent(request.lockId, request)) {
+                losers.add(request);
+            }
+        }
+        unlocks.sort(Comparator.comparingInt(request -> request.lockId));
+        List<Request> winners = new ArrayList<>(locks.values());
+        try (Connection connection = dataSource.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                // 解锁和加锁分别提交，加锁失败不影响解锁的结果
+                if (!unlocks.isEmpty()) {
+                    executeInTransaction(connection, unlocks, results -> unlock(connection, unlocks, results));
+                }
+                if (!winners.isEmpty()) {
+                    executeInTransaction(connection, winners, results -> lock(connection, winners, results));
+                }
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            // 借出连接或者恢复autoCommit失败，还没有完成的请求以异常完成
+            LOGGER.warn("批量执行{}个加锁/解锁请求失败", batch.size(), e);
+            failAll(batch, new LockingException("批量加锁/解锁时出现SQLException", e));
+            return;
+        }
+        for (Request loser : losers) {
+            loser.future.complete(false);
+        }
+    }
+
+    /**
+     * 在一个事务中执行work，提交后完成requests；因为死锁被回滚时重试，仍然失败时requests以异常完成
+     */
+    private void executeInTransaction(Connection connection, List<Request> requests, BatchWork work) throws SQLException {
+        for (int attempt = 0; ; attempt++) {
+            Map<Request, Boolean> results = new HashMap<>(requests.size() * 2);
+            try {
+                work.execute(results);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                if (isDeadlock(e) && attempt < MAX_DEADLOCK_RETRIES) {
+                    LOGGER.debug("批量执行{}个请求时出现死锁，重试", requests.size(), e);
+                    continue;
+                }
+                LOGGER.warn("批量执行{}个请求失败", requests.size(), e);
+                failAll(requests, new LockingException("批量加锁/解锁时出现SQLException", e));
+                return;
+            }
+            for (Map.Entry<Request, Boolean> entry : results.entrySet()) {
+                entry.getKey().future.complete(entry.getValue());
+            }
+            return;
+        }
+    }
+
+    private static boolean isDeadlock(SQLException e) {
+        return ER_LOCK_DEADLOCK == e.getErrorCode() || "40001".equals(e.getSQLState());
+    }
+
+    private void unlock(Connection connection, List<Request> unlocks, Map<Request, Boolean> results) throws SQLException {
+        String pairs = placeholders(unlocks.size(), "(?, ?)");
+        Set<String> held = new HashSet<>();
+        try (PreparedStatement select = connection.prepareStatement(SELECT_HELD_SQL + "(" + pairs + ") for update")) {
+            bindPairs(select, unlocks);
+            try (ResultSet resultSet = select.executeQuery()) {
+                while (resultSet.next()) {
+                    held.add(resultSet.getInt(1) + ":" + resultSet.getString(2));
+                }
+            }
+        }
+        if (!held.isEmpty()) {
+            try (PreparedStatement delete = connection.prepareStatement(DELETE_SQL + "(" + pairs + ")")) {
+                bindPairs(delete, unlocks);
+                delete.executeUpdate();
+            }
+        }
+        for (Request request : unlocks) {
+            // 同一个(lock, locker)在同一批中解锁多次时，只有第一个成功
+            results.put(request, held.remove(request.lockId + ":" + request.locker));
+        }
+    }
+
+    private void lock(Connection connection, List<Request> locks, Map<Request, Boolean> results) throws SQLException {
+        long now = System.currentTimeMillis();
+        int inserted;
+        try (PreparedStatement insert = connection.prepareStatement(INSERT_SQL + placeholders(locks.size(), "(?, ?, ?, ?)"))) {
+            int index = 1;
+            for (Request request : locks) {
+                insert.setInt(index++, request.lockId);
+                insert.setLong(index++, now);
+                insert.setString(index++, request.locker);
+                insert.setString(index++, request.desc);
+            }
+            inserted = insert.executeUpdate();
+        }
+        if (inserted == locks.size() || 0 == inserted) {
+            for (Request request : locks) {
+                results.put(request, inserted > 0);
+            }
+            return;
+        }
+        // 部分成功：查询各个锁的持有者
+        Map<Integer, String> lockers = new HashMap<>(locks.size() * 2);
+        try (PreparedStatement select = connection.prepareStatement(SELECT_LOCKER_SQL + "(" + placeholders(locks.size(), "?") + ")")) {
+            int index = 1;
+            for (Request request : locks) {
+                select.setInt(index++, request.lockId);
+            }
+            try (ResultSet resultSet = select.executeQuery()) {
+                while (resultSet.next()) {
+                    lockers.put(resultSet.getInt(1), resultSet.getString(2));
+                }
+            }
+        }
+        for (Request request : locks) {
+            results.put(request, request.locker.equals(lockers.get(request.lockId)));
+        }
+    }
+
+    private static void bindPairs(PreparedStatement statement, List<Request> requests) throws SQLException {
+        int index = 1;
+        for (Request request : requests) {
+            statement.setInt(index++, request.lockId);
+            statement.setString(index++, request.locker);
+        }
+    }
+
+    private static String placeholders(int count, String placeholder) {
+        return String.join(", ", Collections.nCopies(count, placeholder));
+    }
+
+    private List<Request> drain() {
+        List<Request> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        return remaining;
+    }
+
+    private static void failAll(List<Request> batch, LockingException e) {
+        for (Request request : batch) {
+            request.future.completeExceptionally(e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface BatchWork {
+        void execute(Map<Request, Boolean> results) throws SQLException;
+    }
+
+    private static class Request {
+        private final boolean lock;
+        private final int lockId;
+        private final String locker;
+        private final String desc;
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        Request(boolean lock, int lockId, String locker, String desc) {
+            this.lock = lock;
+            this.lockId = lockId;
+            this.locker = locker;
+            this.desc = desc;
+        }
+    }
+
+    /**
+     * 通过批量提交加锁/解锁的表锁，语义与{@link MysqlTableLock}相同
+     */
+    private class BatchedLock implements DistributedLock {
+        private final int lockId;
+        private final String id = UUID.randomUUID().toString();
+
+        BatchedLock(int lockId) {
+            this.lockId = lockId;
+        }
+
+        @Override
+        public void lock() throws LockingException {
+            if (!tryLock(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
+                throw new LockingException("获取锁时出现InterruptedException");
+            }
+        }
+
+        @Override
+        public boolean tryLock() {
+            return join(tryLockAsync(lockId, getLocker(), null));
+        }
+
+        /**
+         * 失败后指数退避（带随机抖动）再重试，被interrupt时返回false
+         */
+        @Override
+        public boolean tryLock(long timeout, TimeUnit unit) throws LockingException {
+            long start = System.nanoTime();
+            long timeoutNanos = unit.toNanos(timeout);
+            long backoff = MIN_BACKOFF;
+            while (!tryLock()) {
+                long remaining = timeoutNanos - (System.nanoTime() - start);
+                if (remaining <= 0) {
+                    return false;
+                }
+                long sleep = TimeUnit.MILLISECONDS.toNanos(backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+                try {
+                    TimeUnit.NANOSECONDS.sleep(Math.min(remaining, Math.max(sleep, 1)));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                backoff = Math.min(MAX_BACKOFF, backoff * 2);
+            }
+            return true;
+        }
+
+        @Override
+        public void unlock() throws LockingException {
+            if (!join(unlockAsync(lockId, getLocker()))) {
+                throw new LockingException("没有持有锁，不能解锁!");
+            }
+        }
+
+        /**
+         * 锁记录不会自动过期，只能由持有者删除，所以没有租约时间
+         */
+        @Override
+        public long getLeaseTime(TimeUnit unit) {
+            return -1;
+        }
+
+        private String getLocker() {
+            return id + ":" + Thread.currentThread().getId();
+        }
+
+        private boolean join(CompletableFuture<Boolean> future) {
+            try {
+                return future.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof LockingException ? (LockingException) e.getCause()
+                        : new LockingException("批量加锁/解锁失败", e.getCause());
+            }
+        }
+    }
+}
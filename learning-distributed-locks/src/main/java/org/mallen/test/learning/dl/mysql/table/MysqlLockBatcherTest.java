@@ -0,0 +1,62 @@
+package org.mallen.test.learning.dl.mysql.table;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.mallen.test.learning.dl.DistributedLock;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+/**
+ * 运行该代码前请创建对应数据库，并使用resources/MysqlTableLock.sql初始化数据库表。
+ * 100个线程分别对10个锁反复加锁/解锁，对比逐个执行（MysqlTableLock）与批量提交（MysqlLockBatcher）的吞吐量
+ *
+ * @author mallen
+ * @date 6/16/20
+ */
+public class MysqlLockBatcherTest {
+    private static final int THREADS = 100;
+    private static final int LOCKS = 10;
+    private static final int ROUNDS = 100;
+
+    public static void main(String[] args) throws InterruptedException {
+        HikariDataSource hikariDataSource = createDatasource();
+        run("MysqlTableLock", lockId -> new MysqlTableLock(hikariDataSource, lockId));
+        MysqlLockBatcher batcher = new MysqlLockBatcher(hikariDataSource, 2, TimeUnit.MILLISECONDS, 256);
+        run("MysqlLockBatcher", batcher::getLock);
+        System.out.println("平均每批请求数：" + batcher.averageBatchSize());
+        batcher.close();
+        hikariDataSource.close();
+    }
+
+    private static void run(String name, IntFunction<DistributedLock> lockFactory) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(THREADS);
+        AtomicLong counter = new AtomicLong();
+        long start = System.nanoTime();
+        for (int i = 0; i < THREADS; i++) {
+            DistributedLock lock = lockFactory.apply(i % LOCKS + 100);
+            new Thread(() -> {
+                for (int round = 0; round < ROUNDS; round++) {
+                    lock.lock();
+                    counter.incrementAndGet();
+                    lock.unlock();
+                }
+                latch.countDown();
+            }).start();
+        }
+        latch.await();
+        long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        System.out.println(name + "：加锁" + counter.get() + "次，耗时" + millis + "ms，每秒加锁/解锁" + counter.get() * 2 * 1000 / millis + "次");
+    }
+
+    private static HikariDataSource createDatasource() {
+        HikariConfig hikariConfig = new HikariConfig();
+        hikariConfig.setJdbcUrl("jdbc:mysql://127.0.0.1:3306/DL_TEST?useUnicode=true&characterEncoding=utf-8&useSSL=false&verifyServerCertificate=false&allowPublicKeyRetrieval=true");
+        hikariConfig.setUsername("root");
+        hikariConfig.setPassword("root");
+
+        return new HikariDataSource(hikariConfig);
+    }
+}
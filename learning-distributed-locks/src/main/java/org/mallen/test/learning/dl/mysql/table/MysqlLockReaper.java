@@ -0,0 +1,89 @@
+package org.mallen.test.learning.dl.mysql.table;
+
+import org.mallen.test.learning.dl.LockingException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 定期删除{@link MysqlLeaseLock}过期的锁记录。
+ * 过期的锁在下一次被获取时会被直接接管，所以清理不影响正确性，只是避免持有者崩溃后留下的记录一直占用表空间和唯一索引。
+ * 每次最多删除batchSize条记录（delete ... limit），删满一批时马上删除下一批，避免一个大事务长时间锁住大量记录。
+ * expire_at为NULL的记录（{@link MysqlTableLock}）不会过期，不会被删除。集群中启动一个即可，多个同时运行也不会出错。
+ *
+ * @author mallen
+ * @date 6/15/20
+ */
+public class MysqlLockReaper implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MysqlLockReaper.class);
+    private static final String STS_REAP_SQL = "delete from `database_lock` where `expire_at` < ? limit ?";
+    private final DataSource dataSource;
+    private final int batchSize;
+    private final ScheduledExecutorService executor;
+
+    /**
+     * @param interval  清理间隔
+     * @param batchSize 每个delete语句最多删除的记录数
+     */
+    public MysqlLockReaper(DataSource dataSource, long interval, TimeUnit unit, int batchSize) {
+        if (batchSize <= 0) {
+            throw new LockingException("batchSize必须大于0");
+        }
+        this.dataSource = dataSource;
+        this.batchSize = batchSize;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "MysqlLockReaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::reapQuietly, interval, interval, unit);
+    }
+
+    /**
+     * 删除当前已经过期的所有记录
+     *
+     * @return 删除的记录数
+     */
+    public int reap() throws LockingException {
+        long now = System.currentTimeMillis();
+        int total = 0;
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(STS_REAP_SQL)) {
+            preparedStatement.setLong(1, now);
+            preparedStatement.setInt(2, batchSize);
+            int deleted;
+            do {
+                deleted = preparedStatement.executeUpdate();
+                total += deleted;
+            } while (deleted >= batchSize);
+        } catch (SQLException e) {
+            throw new LockingException("删除过期的锁时出现SQLException", e);
+        }
+        return total;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private void reapQuietly() {
+        try {
+            int deleted = reap();
+            if (deleted > 0) {
+                LOGGER.info("删除了{}个过期的锁", deleted);
+            }
+        } catch (LockingException e) {
+            // 不抛出异常，否则定时任务会停止
+            LOGGER.warn("删除过期的锁失败", e);
+        }
+    }
+}
@@ -1,10 +1,14 @@
 package org.mallen.test.learning.dl.mysql.table;
 
+import org.mallen.test.learning.dl.DistributedLock;
+import org.mallen.test.learning.dl.LockingException;
+
 import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 使用mysql的表，实现分布式锁
@@ -12,9 +16,13 @@ import java.util.UUID;
  * @author mallen
  * @date 2/21/20
  */
-public class MysqlTableLock {
-    private static final String STS_LOCK_SQL = "insert into `database_lock`(`lock`, `lock_at`, `locker`,`description`) value(?, ?, ?, ?)";
+public class MysqlTableLock implements DistributedLock {
+    private static final String STS_LOCK_SQL = "insert into `database_lock`(`lock`, `lock_at`, `locker`,`description`) values(?, ?, ?, ?)";
     private static final String STS_UNLOCK_SQL = "delete from `database_lock` where `lock` = ? and `locker` = ?";
+    /**
+     * 自旋获取锁时，每次重试之间的睡眠时间：50ms
+     */
+    private static final long SPIN_INTERVAL = 50;
     private DataSource dataSource;
     private int lockId;
     private String desc;
@@ -33,7 +41,46 @@ public class MysqlTableLock {
         this.id = UUID.randomUUID().toString();
     }
 
-    public Boolean tryLock() {
+    @Override
+    public void lock() throws LockingException {
+        while (!tryLock()) {
+            // 未获取到锁，睡眠一段时间，然后再自旋获取锁
+            try {
+                TimeUnit.MILLISECONDS.sleep(SPIN_INTERVAL);
+            } catch (InterruptedException e) {
+                throw new LockingException("获取锁时出现InterruptedException", e);
+            }
+        }
+    }
+
+    @Override
+    public boolean tryLock(long timeout, TimeUnit unit) throws LockingException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!tryLock()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(SPIN_INTERVAL)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 锁记录不会自动过期，只能由持有者删除，所以没有租约时间
+     */
+    @Override
+    public long getLeaseTime(TimeUnit unit) {
+        return -1;
+    }
+
+    @Override
+    public boolean tryLock() {
         Connection connection = null;
         PreparedStatement preparedStatement = null;
         try {
@@ -46,7 +93,7 @@ public class MysqlTableLock {
 
             preparedStatement.execute();
             // 只要不抛错，则说明获取锁成功
-            return Boolean.TRUE;
+            return true;
         } catch (Exception ex) {
         } finally {
             if (null != preparedStatement) {
@@ -67,9 +114,10 @@ public class MysqlTableLock {
             }
         }
 
-        return Boolean.FALSE;
+        return false;
     }
 
+    @Override
     public void unlock() {
         Connection connection = null;
         PreparedStatement preparedStatement = null;
@@ -0,0 +1,169 @@
+package org.mallen.test.learning.dl.redis.lettuce;
+
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.api.StatefulConnection;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import io.lettuce.core.cluster.api.sync.RedisClusterCommands;
+import io.netty.util.concurrent.EventExecutorGroup;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 自动流水线：关闭连接的自动flush，多个线程发出的命令先写入连接的缓冲区，
+ * 每隔flushInterval或者积累了maxBatchSize个命令时一次性flush，一次系统调用、尽可能少的网络包发送多个命令。
+ * 代价是每个命令最多多等待flushInterval，所以只适合并发很高（例如每秒数万次加锁）的场景。
+ * 定时flush只在缓冲区中有命令时才启动：第一个命令写入空的缓冲区时安排一次flush，空闲时不占用事件循环。
+ * 通过{@link #sync()}、{@link #async()}返回的命令接口发出的命令才会被计数；同步命令由异步命令加等待实现，与lettuce自己的同步接口相同。
+ *
+ * @author mallen
+ * @date 6/16/20
+ */
+public class CommandBatcher {
+    private final StatefulConnection<String, String> connection;
+    private final int maxBatchSize;
+    /**
+     * 已经写入缓冲区、还没有flush的命令数量
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+    private final LongAdder commands = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final EventExecutorGroup executor;
+    private final long flushIntervalNanos;
+    private volatile boolean stopped = false;
+    private final RedisClusterAsyncCommands<String, String> async;
+    private final RedisClusterCommands<String, String> sync;
+
+    /**
+     * @param connection    独占的连接，会被关闭自动flush
+     * @param asyncCommands 连接的异步命令接口
+     * @param executor      执行定时flush的线程组
+     * @param flushInterval flush间隔
+     * @param unit          时间单位
+     * @param maxBatchSize  积累到该数量的命令时立即flush
+     */
+    public CommandBatcher(StatefulConnection<String, String> connection, Supplier<RedisClusterAsyncCommands<String, String>> asyncCommands,
+                          EventExecutorGroup executor, long flushInterval, TimeUnit unit, int maxBatchSize) {
+        if (flushInterval <= 0 || maxBatchSize <= 0) {
+            throw new IllegalArgumentException("flushInterval和maxBatchSize必须大于0");
+        }
+        this.connection = connection;
+        this.maxBatchSize = maxBatchSize;
+        this.connection.setAutoFlushCommands(false);
+        this.async = asyncProxy(asyncCommands);
+        this.sync = syncProxy(async, connection);
+        this.executor = executor;
+        this.flushIntervalNanos = unit.toNanos(flushInterval);
+    }
+
+    public RedisClusterAsyncCommands<String, String> async() {
+        return async;
+    }
+
+    public RedisClusterCommands<String, String> sync() {
+        return sync;
+    }
+
+    /**
+     * flush缓冲区中的所有命令
+     */
+    public void flush() {
+        int count = pending.getAndSet(0);
+        if (count > 0) {
+            connection.flushCommands();
+            commands.add(count);
+            flushes.increment();
+        }
+    }
+
+    /**
+     * 平均每次flush发送的命令数量
+     */
+    public double averageBatchSize() {
+        long flushCount = flushes.sum();
+        return 0 == flushCount ? 0 : (double) commands.sum() / flushCount;
+    }
+
+    public long getCommands() {
+        return commands.sum();
+    }
+
+    public long getFlushes() {
+        return flushes.sum();
+    }
+
+    /**
+     * flush剩余的命令，之后不再执行已经安排的定时flush（连接会被关闭）
+     */
+    public void stop() {
+        stopped = true;
+        flush();
+    }
+
+    private void queued() {
+        int count = pending.incrementAndGet();
+        if (count >= maxBatchSize) {
+            flush();
+        } else if (1 == count) {
+            // 缓冲区从空变为非空，flushInterval后flush；在此之前积累到maxBatchSize时提前flush，到时没有命令则什么都不做
+            executor.schedule(() -> {
+                if (!stopped) {
+                    flush();
+                }
+            }, flushIntervalNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private RedisClusterAsyncCommands<String, String> asyncProxy(Supplier<RedisClusterAsyncCommands<String, String>> target) {
+        return (RedisClusterAsyncCommands<String, String>) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{RedisClusterAsyncCommands.class}, (proxy, method, args) -> {
+                    Object result = invoke(method, target.get(), args);
+                    if (result instanceof RedisFuture) {
+                        queued();
+                    }
+                    return result;
+                });
+    }
+
+    /**
+     * 同步命令：调用同名的异步命令，然后等待结果
+     */
+    @SuppressWarnings("unchecked")
+    private static RedisClusterCommands<String, String> syncProxy(RedisClusterAsyncCommands<String, String> async,
+                                                                  StatefulConnection<String, String> connection) {
+        Map<Method, Method> asyncMethods = new ConcurrentHashMap<>();
+        return (RedisClusterCommands<String, String>) Proxy.newProxyInstance(CommandBatcher.class.getClassLoader(),
+                new Class<?>[]{RedisClusterCommands.class}, (proxy, method, args) -> {
+                    Method asyncMethod = asyncMethods.computeIfAbsent(method, m -> {
+                        try {
+                            return RedisClusterAsyncCommands.class.getMethod(m.getName(), m.getParameterTypes());
+                        } catch (NoSuchMethodException e) {
+                            throw new UnsupportedOperationException("不支持的命令：" + m.getName(), e);
+                        }
+                    });
+                    Object result = invoke(asyncMethod, async, args);
+                    if (result instanceof RedisFuture) {
+                        long timeout = connection.getTimeout().toNanos();
+                        return LettuceFutures.awaitOrCancel((RedisFuture<?>) result, timeout, TimeUnit.NANOSECONDS);
+                    }
+                    return result;
+                });
+    }
+
+    private static Object invoke(Method method, Object target, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package org.mallen.test.learning.dl.redis.lettuce;
+
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.cluster.SlotHash;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 锁租约看门狗：每个客户端共享一个，记录当前JVM持有的所有锁，定时为快要过期的锁续时。
+ * 每次检查时，需要续时的锁通过一次{@link LockScript#RENEW_BATCH}脚本批量续时（锁很多时分成多批，以流水线的方式发送），
+ * 而不是为每个锁分别启动一个线程、发送一条命令。
+ * 集群模式下，一个脚本的所有key必须在同一个slot，所以先按slot分组，每组分别续时。
+ * 续时前会检查锁的值，如果锁已经不属于自己（已经过期，或者被其他线程获取），则停止续时并回调{@link LockLostListener}。
+ * lettuce的异步命令没有默认的超时时间，所以每次续时请求最多等待一个检查间隔，超时后按失败处理，以免一个没有返回的请求让所有锁都停止续时。
+ * 本地记录的过期时间使用System.nanoTime()计算，不受系统时钟调整的影响。
+ *
+ * @author mallen
+ * @date 6/5/20
+ */
+public class LeaseWatchdog {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LeaseWatchdog.class);
+    /**
+     * 每次执行续时脚本最多包含的锁数量，避免单个脚本执行时间过长阻塞Redis
+     */
+    private static final int MAX_BATCH = 1000;
+    private final ScriptRegistry scripts;
+    /**
+     * 是否需要按slot分组续时（集群模式）
+     */
+    private final boolean groupBySlot;
+    private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+    /**
+     * 正在执行的续时请求数量，上一次检查的续时请求没有返回时，跳过本次检查
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final EventExecutorGroup executor;
+    /**
+     * 续时请求的超时时间，等于检查间隔
+     */
+    private final long renewTimeoutNanos;
+    private final ScheduledFuture<?> task;
+
+    /**
+     * @param scripts       续时使用的脚本注册表
+     * @param executor      执行定时检查的线程组，一般使用lettuce的ClientResources.eventExecutorGroup()
+     * @param checkInterval 检查间隔，需要小于最短租约时间的1/3
+     * @param unit          时间单位
+     */
+    public LeaseWatchdog(ScriptRegistry scripts, EventExecutorGroup executor, long checkInterval, TimeUnit unit) {
+        this(scripts, executor, checkInterval, unit, false);
+    }
+
+    /**
+     * @param groupBySlot 是否按slot分组续时，集群模式下需要为true
+     */
+    public LeaseWatchdog(ScriptRegistry scripts, EventExecutorGroup executor, long checkInterval, TimeUnit unit, boolean groupBySlot) {
+        this.scripts = scripts;
+        this.groupBySlot = groupBySlot;
+        this.executor = executor;
+        this.renewTimeoutNanos = unit.toNanos(checkInterval);
+        this.task = executor.scheduleWithFixedDelay(this::renewDueLeases, checkInterval, checkInterval, unit);
+    }
+
+    /**
+     * 开始为锁续时
+     *
+     * @param key       锁的key
+     * @param value     锁的值
+     * @param leaseTime 租约时间，每次续时都将过期时间重置为该值
+     * @param unit      时间单位
+     * @param listener  锁丢失时的回调
+     */
+    public void watch(String key, String value, long leaseTime, TimeUnit unit, LockLostListener listener) {
+        long leaseMillis = unit.toMillis(leaseTime);
+        leases.put(key, new Lease(key, value, leaseMillis, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(leaseMillis), listener));
+    }
+
+    /**
+     * 停止为锁续时，一般在释放锁之前调用
+     */
+    public void unwatch(String key, String value) {
+        leases.computeIfPresent(key, (k, lease) -> lease.value.equals(value) ? null : lease);
+    }
+
+    /**
+     * 当前正在续时的锁的数量
+     */
+    public int size() {
+        return leases.size();
+    }
+
+    public void stop() {
+        task.cancel(false);
+        leases.clear();
+    }
+
+    /**
+     * 由scheduleWithFixedDelay执行，抛出异常会取消后续的所有检查，所以捕获所有异常，下次检查时重试
+     */
+    private void renewDueLeases() {
+        try {
+            if (inFlight.get() > 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            List<Lease> due = new ArrayList<>();
+            for (Lease lease : leases.values()) {
+                // 租约已经过去1/3时续时
+                if (lease.expireAt - now <= lease.leaseNanos * 2 / 3) {
+                    due.add(lease);
+                }
+            }
+            for (List<Lease> group : partition(due)) {
+                for (int from = 0; from < group.size(); from += MAX_BATCH) {
+                    renew(group.subList(from, Math.min(group.size(), from + MAX_BATCH)), now);
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.warn("检查锁租约失败", e);
+        }
+    }
+
+    private Collection<List<Lease>> partition(List<Lease> due) {
+        if (!groupBySlot) {
+            return Collections.singletonList(due);
+        }
+        Map<Integer, List<Lease>> slots = new HashMap<>();
+        for (Lease lease : due) {
+            slots.computeIfAbsent(SlotHash.getSlot(lease.key), slot -> new ArrayList<>()).add(lease);
+        }
+        return slots.values();
+    }
+
+    private void renew(List<Lease> batch, long now) {
+        String[] keys = new String[batch.size()];
+        String[] args = new String[batch.size() * 2];
+        for (int i = 0; i < batch.size(); i++) {
+            Lease lease = batch.get(i);
+            keys[i] = lease.key;
+            args[i * 2] = lease.value;
+            args[i * 2 + 1] = String.valueOf(lease.leaseMillis);
+        }
+        inFlight.incrementAndGet();
+        // 请求返回和超时只有一个生效，保证inFlight只减少一次
+        AtomicBoolean settled = new AtomicBoolean(false);
+        ScheduledFuture<?> timeout = executor.schedule(() -> {
+            if (settled.compareAndSet(false, true)) {
+                inFlight.decrementAndGet();
+                LOGGER.warn("批量续时超时，锁数量：{}", batch.size());
+                failed(batch);
+            }
+        }, renewTimeoutNanos, TimeUnit.NANOSECONDS);
+        scripts.<List<Long>>evalAsync(LockScript.RENEW_BATCH, ScriptOutputType.MULTI, keys, args).whenComplete((result, ex) -> {
+            if (!settled.compareAndSet(false, true)) {
+                // 已经按超时处理，下次检查时会重新续时
+                return;
+            }
+            timeout.cancel(false);
+            inFlight.decrementAndGet();
+            if (null != ex) {
+                LOGGER.warn("批量续时失败，锁数量：{}", batch.size(), ex);
+                failed(batch);
+                return;
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                Lease lease = batch.get(i);
+                if (1 == result.get(i)) {
+                    // 以发送请求前的时间计算过期时间，保证本地记录的过期时间不晚于Redis中的过期时间
+                    lease.expireAt = now + lease.leaseNanos;
+                } else {
+                    lost(lease);
+                }
+            }
+        });
+    }
+
+    /**
+     * 续时请求失败或者超时，下次检查时重试，已经过期的锁视为丢失
+     */
+    private void failed(List<Lease> batch) {
+        long current = System.nanoTime();
+        for (Lease lease : batch) {
+            if (lease.expireAt - current <= 0) {
+                lost(lease);
+            }
+        }
+    }
+
+    private void lost(Lease lease) {
+        if (leases.remove(lease.key, lease)) {
+            LOGGER.warn("锁已丢失，key：{}，value：{}", lease.key, lease.value);
+            try {
+                lease.listener.onLockLost(lease.key, lease.value);
+            } catch (Exception e) {
+                LOGGER.warn("执行锁丢失回调失败", e);
+            }
+        }
+    }
+
+    /**
+     * 锁丢失回调：续时时发现锁已经不属于自己（已经过期，或者被其他线程获取）
+     */
+    @FunctionalInterface
+    public interface LockLostListener {
+        void onLockLost(String key, String value);
+    }
+
+    private static class Lease {
+        private final String key;
+        private final String value;
+        private final long leaseMillis;
+        private final long leaseNanos;
+        private final LockLostListener listener;
+        /**
+         * 本地记录的过期时间（System.nanoTime()），只能与nanoTime的差值比较
+         */
+        private volatile long expireAt;
+
+        Lease(String key, String value, long leaseMillis, long expireAt, LockLostListener listener) {
+            this.key = key;
+            this.value = value;
+            this.leaseMillis = leaseMillis;
+            this.leaseNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+            this.expireAt = expireAt;
+            this.listener = listener;
+        }
+    }
+}
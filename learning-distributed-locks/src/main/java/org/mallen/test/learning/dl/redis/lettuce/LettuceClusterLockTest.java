@@ -0,0 +1,80 @@
+package org.mallen.test.learning.dl.redis.lettuce;
+
+import io.lettuce.core.RedisURI;
+import org.mallen.test.learning.dl.redis.lettuce.advance.LettuceAdvanceLock;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 在Redis集群上使用锁：每个Seller卖一个场次的票，每个场次一把锁，不同场次的锁按slot分布在集群的各个节点上。
+ * 需要先启动一个集群，例如使用redis源码中的utils/create-cluster脚本启动的127.0.0.1:30001~30006
+ *
+ * @author mallen
+ * @date 6/15/20
+ */
+public class LettuceClusterLockTest {
+    private static final int SESSIONS = 6;
+    private static final int TICKETS_PER_SESSION = 100;
+    private static int[] tickets = new int[SESSIONS];
+    /**
+     * 收集已卖票信息，如果正常的话，set的size应该等于票的总数
+     */
+    private static Set<String> soldTickets = new HashSet<>();
+
+    public static void main(String[] args) throws InterruptedException {
+        Arrays.fill(tickets, TICKETS_PER_SESSION);
+        List<RedisURI> seeds = Arrays.asList(
+                RedisURI.create("127.0.0.1", 30001),
+                RedisURI.create("127.0.0.1", 30002),
+                RedisURI.create("127.0.0.1", 30003));
+        int sellerCount = SESSIONS * 2;
+        CountDownLatch latch = new CountDownLatch(sellerCount);
+        for (int i = 0; i < sellerCount; i++) {
+            // 每个场次两个Seller竞争同一把锁
+            int session = i % SESSIONS;
+            // 相同的seeds得到同一个客户端，每个锁持有一个引用，最后一个锁destory时关闭客户端
+            LettuceAdvanceLock lock = new LettuceAdvanceLock(LockClient.cluster(seeds), "tickets_lock:" + session);
+            Thread thread = new Thread(new Seller(latch, lock, session));
+            thread.setName("thread" + (i + 1));
+            thread.start();
+        }
+        latch.await();
+        System.out.println("已卖票数量为：" + soldTickets.size() + "，应该为：" + SESSIONS * TICKETS_PER_SESSION);
+    }
+
+    static class Seller implements Runnable {
+        private final CountDownLatch latch;
+        private final LettuceAdvanceLock lock;
+        private final int session;
+
+        public Seller(CountDownLatch latch, LettuceAdvanceLock lock, int session) {
+            this.latch = latch;
+            this.lock = lock;
+            this.session = session;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                lock.lock();
+                if (tickets[session] > 0) {
+                    synchronized (soldTickets) {
+                        soldTickets.add(session + ":" + tickets[session]);
+                    }
+                    System.out.println(Thread.currentThread().getName() + "卖出场次" + session + "的票：" + tickets[session]);
+                    tickets[session]--;
+                    lock.unlock();
+                } else {
+                    lock.unlock();
+                    break;
+                }
+            }
+            lock.destory();
+            latch.countDown();
+        }
+    }
+}
@@ -1,44 +1,70 @@
 package org.mallen.test.learning.dl.redis.lettuce;
 
-import io.lettuce.core.RedisClient;
 import io.lettuce.core.RedisURI;
 import io.lettuce.core.ScriptOutputType;
 import io.lettuce.core.SetArgs;
-import io.lettuce.core.api.StatefulRedisConnection;
+import org.mallen.test.learning.dl.DistributedLock;
+import org.mallen.test.learning.dl.LockingException;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author mallen
  * @date 2/17/20
  */
-public class LettuceLock {
-    private static RedisClient REDIS_CLIENT = null;
-    private static StatefulRedisConnection<String, String> CONNECTION = null;
+public class LettuceLock implements DistributedLock {
+    /**
+     * 同一个地址的所有锁共享的客户端（单机或者集群）
+     */
+    private final LockClient client;
     /**
      * 过期时间：10s
      */
     private static int EXPIRE = 10;
     private static SetArgs setArgs = SetArgs.Builder.nx().ex(EXPIRE);
-    private static String RELEASE_LUA =
-            "if redis.call(\"get\",KEYS[1]) == ARGV[1] then\n" +
-                    "    return redis.call(\"del\",KEYS[1])\n" +
-                    "else\n" +
-                    "    return 0\n" +
-                    "end";
+    /**
+     * 自旋获取锁时，每次重试之间的睡眠时间：1ms
+     */
+    private static long SPIN_INTERVAL = 1;
+    /**
+     * 通过{@link DistributedLock}接口使用时，锁对应的key
+     */
+    private String lockKey;
+    private String id;
 
     public LettuceLock() {
-        RedisURI redisURI = RedisURI.builder()
+        this(RedisURI.builder()
                 .withHost("127.0.0.1")
                 .withPort(6379)
                 .withDatabase(1)
-                .build();
-        REDIS_CLIENT = RedisClient.create(redisURI);
-        CONNECTION = REDIS_CLIENT.connect();
+                .build(), null);
+    }
+
+    public LettuceLock(String lockKey) {
+        this();
+        this.lockKey = lockKey;
+    }
+
+    public LettuceLock(RedisURI redisURI, String lockKey) {
+        this(LockClient.standalone(redisURI), lockKey);
+    }
+
+    /**
+     * @param client 通过{@link LockClient#standalone(RedisURI)}或者{@link LockClient#cluster(java.util.List)}获取的客户端，获取时得到的引用交给锁管理，{@link #destory()}时释放
+     */
+    public LettuceLock(LockClient client, String lockKey) {
+        this.client = client;
+        this.lockKey = lockKey;
+        this.id = UUID.randomUUID().toString();
     }
 
     public Boolean tryLock(String key, String value) {
         Boolean result = false;
         try {
-            String rc = CONNECTION.sync().set(key, value, setArgs);
+            String rc = client.sync().set(key, value, setArgs);
             if ("OK".equals(rc)) {
                 result = true;
             }
@@ -51,7 +77,7 @@ public class LettuceLock {
 
     public void releaseLock(String key, String value) {
         try {
-            Long result = CONNECTION.sync().eval(RELEASE_LUA, ScriptOutputType.INTEGER, new String[]{key}, value);
+            Long result = client.scripts().eval(LockScript.RELEASE, ScriptOutputType.INTEGER, new String[]{key}, value);
             // 返回1表示执行del命令成功
             if (1 != result) {
                 System.out.println("释放锁失败");
@@ -61,12 +87,140 @@ public class LettuceLock {
         }
     }
 
+    /**
+     * 异步获取锁，只尝试一次，不会阻塞调用线程
+     *
+     * @return 获取成功时完成为true，否则完成为false
+     */
+    public CompletionStage<Boolean> tryLockAsync(String key, String value) {
+        return client.async().set(key, value, setArgs).thenApply("OK"::equals);
+    }
+
+    /**
+     * 异步获取锁，直到获取成功。重试由lettuce的事件线程调度，等待期间不占用任何线程；取消返回的CompletionStage后停止重试
+     */
+    public CompletionStage<Boolean> lockAsync(String key, String value) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        attemptAsync(key, value, false, 0, result);
+        return result;
+    }
+
+    /**
+     * 异步获取锁，最多等待timeout时间。重试由lettuce的事件线程调度，等待期间不占用任何线程；取消返回的CompletionStage后停止重试
+     *
+     * @return 在等待时间内获取成功时完成为true，超时完成为false
+     */
+    public CompletionStage<Boolean> lockAsync(String key, String value, long timeout, TimeUnit unit) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        attemptAsync(key, value, true, System.nanoTime() + unit.toNanos(timeout), result);
+        return result;
+    }
+
+    /**
+     * 异步释放锁
+     *
+     * @return 释放成功时完成为true；锁已经不属于value（已过期或被其他线程持有）时完成为false
+     */
+    public CompletionStage<Boolean> releaseAsync(String key, String value) {
+        return client.scripts().<Long>evalAsync(LockScript.RELEASE, ScriptOutputType.INTEGER, new String[]{key}, value)
+                // 返回1表示执行del命令成功
+                .thenApply(result -> 1 == result);
+    }
+
+    @Override
+    public void lock() throws LockingException {
+        while (!tryLock()) {
+            // 未获取到锁，睡眠一段时间，然后再自旋获取锁
+            try {
+                TimeUnit.MILLISECONDS.sleep(SPIN_INTERVAL);
+            } catch (InterruptedException e) {
+                throw new LockingException("获取锁时出现InterruptedException", e);
+            }
+        }
+    }
+
+    @Override
+    public boolean tryLock() {
+        return tryLock(getLockKey(), getLocker());
+    }
+
+    @Override
+    public boolean tryLock(long timeout, TimeUnit unit) throws LockingException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!tryLock()) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(SPIN_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void unlock() throws LockingException {
+        releaseLock(getLockKey(), getLocker());
+    }
+
+    @Override
+    public long getLeaseTime(TimeUnit unit) {
+        return unit.convert(EXPIRE, TimeUnit.SECONDS);
+    }
+
     public void destory() {
-        if (null != CONNECTION) {
-            CONNECTION.close();
+        client.release();
+    }
+
+    /**
+     * @param timed    是否限时，为false时一直重试
+     * @param deadline 截止时间（System.nanoTime()），只在timed为true时有效
+     * @param result   调用者取消（或者以其他方式完成）后不再重试
+     */
+    private void attemptAsync(String key, String value, boolean timed, long deadline, CompletableFuture<Boolean> result) {
+        if (result.isDone()) {
+            return;
         }
-        if (null != REDIS_CLIENT) {
-            REDIS_CLIENT.shutdown();
+        tryLockAsync(key, value).whenComplete((locked, ex) -> {
+            if (null != ex) {
+                result.completeExceptionally(ex);
+                return;
+            }
+            if (locked) {
+                if (!result.complete(true)) {
+                    // 获取成功之前调用者已经放弃，不会再有人释放这个锁
+                    releaseAsync(key, value);
+                }
+                return;
+            }
+            long delay = TimeUnit.MILLISECONDS.toNanos(SPIN_INTERVAL);
+            if (timed) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    result.complete(false);
+                    return;
+                }
+                delay = Math.min(delay, remaining);
+            }
+            // 未获取到锁，由事件线程在一段时间后重试，而不是让线程睡眠
+            client.executor().schedule(() -> attemptAsync(key, value, timed, deadline, result), delay, TimeUnit.NANOSECONDS);
+        });
+    }
+
+    private String getLockKey() {
+        if (null == lockKey) {
+            throw new LockingException("没有指定lockKey，请使用LettuceLock(lockKey)构造锁");
         }
+        return lockKey;
+    }
+
+    /**
+     * 锁的值，用于标识持有锁的线程，释放锁时只能释放自己持有的锁
+     */
+    private String getLocker() {
+        return id + ":" + Thread.currentThread().getId();
     }
 }
@@ -0,0 +1,283 @@
+package org.mallen.test.learning.dl.redis.lettuce;
+
+import io.lettuce.core.AbstractRedisClient;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.StatefulConnection;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.cluster.ClusterClientOptions;
+import io.lettuce.core.cluster.ClusterTopologyRefreshOptions;
+import io.lettuce.core.cluster.RedisClusterClient;
+import io.lettuce.core.cluster.SlotHash;
+import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import io.lettuce.core.cluster.api.sync.RedisClusterCommands;
+import io.lettuce.core.pubsub.StatefulRedisPubSubConnection;
+import io.lettuce.core.resource.ClientResources;
+import io.netty.util.concurrent.EventExecutorGroup;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分布式锁使用的Redis客户端，支持单机（{@link RedisClient}）和集群（{@link RedisClusterClient}）两种模式。
+ * 同一个地址的所有锁共享一个客户端、一个连接、一个脚本注册表、一个续时看门狗，以及每个频道前缀一个锁释放消息分发器，
+ * 通过{@link #standalone(RedisURI)}、{@link #cluster(List)}获取，最后一个使用者调用{@link #release()}后关闭。
+ * 集群模式下由lettuce缓存slot与节点的对应关系，命令直接发送到key所在的节点；收到MOVED/ASK时lettuce负责重定向，并触发拓扑刷新，
+ * 之后的命令又可以直接发送到正确的节点。
+ * 通过{@link #pipelined(RedisURI, long, TimeUnit, int)}获取的客户端使用自动流水线（{@link CommandBatcher}），多个线程的命令合并flush。
+ *
+ * @author mallen
+ * @date 6/15/20
+ */
+public class LockClient {
+    /**
+     * 看门狗的检查间隔：1s，锁的过期时间一般为10s，租约过去1/3时续时
+     */
+    private static final long WATCHDOG_INTERVAL = 1;
+    /**
+     * 集群拓扑的定时刷新间隔：60s，拓扑变化时还会由MOVED/ASK等事件触发刷新
+     */
+    private static final long TOPOLOGY_REFRESH_PERIOD = 60;
+    /**
+     * 正在使用的客户端，key为地址
+     */
+    private static final Map<String, LockClient> CLIENTS = new HashMap<>();
+    private final String address;
+    private final AbstractRedisClient client;
+    private final ClientResources resources;
+    private final StatefulConnection<String, String> connection;
+    private final boolean cluster;
+    /**
+     * 自动流水线，没有开启时为null
+     */
+    private final CommandBatcher batcher;
+    private final ScriptRegistry scripts;
+    private final LeaseWatchdog watchdog;
+    /**
+     * 锁释放消息分发器，key为频道前缀，需要持有当前对象的锁才能访问
+     */
+    private final Map<String, ReleaseNotifier> notifiers = new HashMap<>();
+    /**
+     * 使用者数量，需要持有LockClient.class的锁才能访问
+     */
+    private int references = 0;
+
+    /**
+     * @param flushInterval 自动流水线的flush间隔（纳秒），小于等于0表示不开启
+     */
+    private LockClient(String address, RedisClient redisClient, long flushInterval, int maxBatchSize) {
+        this.address = address;
+        this.client = redisClient;
+        this.resources = redisClient.getResources();
+        StatefulRedisConnection<String, String> standaloneConnection = redisClient.connect();
+        this.connection = standaloneConnection;
+        this.cluster = false;
+        if (flushInterval > 0) {
+            this.batcher = new CommandBatcher(standaloneConnection, standaloneConnection::async, executor(),
+                    flushInterval, TimeUnit.NANOSECONDS, maxBatchSize);
+            this.scripts = new ScriptRegistry(batcher::sync, batcher::async);
+        } else {
+            this.batcher = null;
+            this.scripts = new ScriptRegistry(standaloneConnection);
+        }
+        this.watchdog = new LeaseWatchdog(scripts, executor(), WATCHDOG_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    private LockClient(String address, RedisClusterClient clusterClient) {
+        this.address = address;
+        this.client = clusterClient;
+        this.resources = clusterClient.getResources();
+        clusterClient.setOptions(ClusterClientOptions.builder()
+                .topologyRefreshOptions(ClusterTopologyRefreshOptions.builder()
+                        .enablePeriodicRefresh(Duration.ofSeconds(TOPOLOGY_REFRESH_PERIOD))
+                        .enableAllAdaptiveRefreshTriggers()
+                        .build())
+                .build());
+        StatefulRedisClusterConnection<String, String> clusterConnection = clusterClient.connect();
+        this.connection = clusterConnection;
+        this.cluster = true;
+        this.batcher = null;
+        this.scripts = new ScriptRegistry(clusterConnection);
+        this.watchdog = new LeaseWatchdog(scripts, executor(), WATCHDOG_INTERVAL, TimeUnit.SECONDS, true);
+    }
+
+    /**
+     * 获取单机模式的客户端，使用完毕后需要调用{@link #release()}
+     */
+    public static synchronized LockClient standalone(RedisURI redisURI) {
+        String address = address(redisURI);
+        LockClient lockClient = CLIENTS.get(address);
+        if (null == lockClient) {
+            lockClient = new LockClient(address, RedisClient.create(redisURI), 0, 0);
+            CLIENTS.put(address, lockClient);
+        }
+        lockClient.references++;
+        return lockClient;
+    }
+
+    /**
+     * 获取开启了自动流水线的单机模式客户端，与{@link #standalone(RedisURI)}得到的客户端使用不同的连接，使用完毕后需要调用{@link #release()}。
+     * 相同的地址和参数得到同一个客户端
+     *
+     * @param flushInterval flush间隔，每个命令最多多等待这么长时间，一般为几十到几百微秒
+     * @param unit          时间单位
+     * @param maxBatchSize  积累到该数量的命令时立即flush
+     */
+    public static synchronized LockClient pipelined(RedisURI redisURI, long flushInterval, TimeUnit unit, int maxBatchSize) {
+        long intervalNanos = unit.toNanos(flushInterval);
+        String address = "pipelined:" + intervalNanos + ":" + maxBatchSize + ":" + address(redisURI);
+        LockClient lockClient = CLIENTS.get(address);
+        if (null == lockClient) {
+            lockClient = new LockClient(address, RedisClient.create(redisURI), intervalNanos, maxBatchSize);
+            CLIENTS.put(address, lockClient);
+        }
+        lockClient.references++;
+        return lockClient;
+    }
+
+    /**
+     * 获取集群模式的客户端，使用完毕后需要调用{@link #release()}
+     *
+     * @param seeds 集群中的部分节点，用于发现整个集群的拓扑
+     */
+    public static synchronized LockClient cluster(List<RedisURI> seeds) {
+        List<String> addresses = new ArrayList<>(seeds.size());
+        for (RedisURI seed : seeds) {
+            addresses.add(address(seed));
+        }
+        String address = "cluster:" + addresses;
+        LockClient lockClient = CLIENTS.get(address);
+        if (null == lockClient) {
+            lockClient = new LockClient(address, RedisClusterClient.create(seeds));
+            CLIENTS.put(address, lockClient);
+        }
+        lockClient.references++;
+        return lockClient;
+    }
+
+    public RedisClusterCommands<String, String> sync() {
+        if (null != batcher) {
+            return batcher.sync();
+        }
+        return cluster ? ((StatefulRedisClusterConnection<String, String>) connection).sync()
+                : ((StatefulRedisConnection<String, String>) connection).sync();
+    }
+
+    public RedisClusterAsyncCommands<String, String> async() {
+        if (null != batcher) {
+            return batcher.async();
+        }
+        return cluster ? ((StatefulRedisClusterConnection<String, String>) connection).async()
+                : ((StatefulRedisConnection<String, String>) connection).async();
+    }
+
+    public ScriptRegistry scripts() {
+        return scripts;
+    }
+
+    public LeaseWatchdog watchdog() {
+        return watchdog;
+    }
+
+    /**
+     * 频道前缀对应的锁释放消息分发器，第一次调用时创建订阅连接
+     */
+    public synchronized ReleaseNotifier notifier(String channelPrefix) {
+        ReleaseNotifier notifier = notifiers.get(channelPrefix);
+        if (null == notifier) {
+            // 集群模式下PUBLISH会广播到所有节点，所以订阅连接连接任意一个节点即可
+            StatefulRedisPubSubConnection<String, String> pubSubConnection = cluster
+                    ? ((RedisClusterClient) client).connectPubSub()
+                    : ((RedisClient) client).connectPubSub();
+            notifier = new ReleaseNotifier(pubSubConnection, channelPrefix);
+            notifiers.put(channelPrefix, notifier);
+        }
+        return notifier;
+    }
+
+    /**
+     * 平均每次flush发送的命令数量，没有开启自动流水线时每个命令单独flush，返回1
+     */
+    public double averageBatchSize() {
+        return null == batcher ? 1 : batcher.averageBatchSize();
+    }
+
+    /**
+     * 用于调度重试等定时任务的线程组
+     */
+    public EventExecutorGroup executor() {
+        return resources.eventExecutorGroup();
+    }
+
+    public boolean isCluster() {
+        return cluster;
+    }
+
+    /**
+     * 将key按slot分组，同一组的key可以在一个lua脚本中访问。单机模式下所有key为一组；
+     * 集群模式下按slot从小到大排列，组内保持原来的顺序，所有客户端得到的分组顺序相同
+     */
+    public List<List<String>> groupBySlot(Collection<String> keys) {
+        if (!cluster) {
+            return Collections.singletonList(new ArrayList<>(keys));
+        }
+        Map<Integer, List<String>> slots = new TreeMap<>();
+        for (String key : keys) {
+            slots.computeIfAbsent(SlotHash.getSlot(key), slot -> new ArrayList<>()).add(key);
+        }
+        return new ArrayList<>(slots.values());
+    }
+
+    /**
+     * 不再使用时调用，最后一个使用者调用后关闭连接和客户端
+     */
+    public void release() {
+        synchronized (LockClient.class) {
+            // 重复释放时不再减少，以免计数变为负数后，之后获取到的使用者被提前关闭
+            if (references <= 0 || --references > 0) {
+                return;
+            }
+            CLIENTS.remove(address, this);
+        }
+        watchdog.stop();
+        if (null != batcher) {
+            batcher.stop();
+        }
+        synchronized (this) {
+            for (ReleaseNotifier notifier : notifiers.values()) {
+                notifier.close();
+            }
+            notifiers.clear();
+        }
+        connection.close();
+        client.shutdown();
+    }
+
+    /**
+     * 客户端的缓存key。RedisURI.toString()只包含地址（host、port、socket、sentinel），
+     * 不同database、密码、SSL设置的URI会得到同一个连接，所以需要把这些设置也加入key
+     */
+    private static String address(RedisURI redisURI) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(redisURI.isSsl() ? "rediss://" : "redis://")
+                .append(redisURI.getHost()).append(':').append(redisURI.getPort())
+                .append("?socket=").append(redisURI.getSocket())
+                .append("&sentinelMasterId=").append(redisURI.getSentinelMasterId())
+                .append("&sentinels=").append(redisURI.getSentinels())
+                .append("&database=").append(redisURI.getDatabase())
+                .append("&password=").append(null == redisURI.getPassword() ? null : new String(redisURI.getPassword()))
+                .append("&clientName=").append(redisURI.getClientName())
+                .append("&verifyPeer=").append(redisURI.isVerifyPeer())
+                .append("&startTls=").append(redisURI.isStartTls())
+                .append("&timeout=").append(redisURI.getTimeout());
+        return builder.toString();
+    }
+}
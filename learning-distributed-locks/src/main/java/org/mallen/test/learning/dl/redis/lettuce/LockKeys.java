@@ -0,0 +1,35 @@
+package org.mallen.test.learning.dl.redis.lettuce;
+
+/**
+ * 锁相关key的命名约定。集群模式下，同一个锁的辅助key（等待队列、超时时间等）必须与锁在同一个slot，才能在同一个lua脚本中访问，
+ * 所以辅助key使用锁的hash tag：锁的key本身带有hash tag（例如"{order:1}:lock"）时沿用该tag，否则以整个key作为tag。
+ *
+ * @author mallen
+ * @date 6/15/20
+ */
+public class LockKeys {
+    private LockKeys() {
+    }
+
+    /**
+     * 与锁在同一个slot的辅助key，例如related("tickets", "queue")为"{tickets}:queue"
+     */
+    public static String related(String key, String suffix) {
+        if (hasHashTag(key)) {
+            return key + ":" + suffix;
+        }
+        return "{" + key + "}:" + suffix;
+    }
+
+    /**
+     * 与Redis计算slot的规则一致：存在"{"，其后存在"}"，并且两者之间不为空
+     */
+    static boolean hasHashTag(String key) {
+        int start = key.indexOf('{');
+        if (start < 0) {
+            return false;
+        }
+        int end = key.indexOf('}', start + 1);
+        return end > start + 1;
+    }
+}
@@ -0,0 +1,162 @@
+package org.mallen.test.learning.dl.redis.lettuce;
+
+/**
+ * 分布式锁用到的lua脚本，配合{@link ScriptRegistry}使用，按摘要(EVALSHA)执行
+ *
+ * @author mallen
+ * @date 6/4/20
+ */
+public enum LockScript {
+    /**
+     * 释放锁：只有锁的值等于ARGV[1]时才删除，返回1表示删除成功
+     */
+    RELEASE("if redis.call(\"get\",KEYS[1]) == ARGV[1] then\n" +
+            "    return redis.call(\"del\",KEYS[1])\n" +
+            "else\n" +
+            "    return 0\n" +
+            "end"),
+    /**
+     * 为锁续时：只有锁的值等于ARGV[1]时才将过期时间设置为ARGV[2]毫秒，返回1表示续时成功。
+     * 与直接使用SET key value EX相比，不会覆盖其他线程已经持有的锁
+     */
+    RENEW("if redis.call(\"get\",KEYS[1]) == ARGV[1] then\n" +
+            "    return redis.call(\"pexpire\",KEYS[1],ARGV[2])\n" +
+            "else\n" +
+            "    return 0\n" +
+            "end"),
+    /**
+     * 有条件的获取锁：锁不存在时设置值为ARGV[1]、过期时间为ARGV[2]毫秒；锁已经属于ARGV[1]时重置过期时间。返回1表示获取成功
+     */
+    ACQUIRE("local value = redis.call(\"get\",KEYS[1])\n" +
+            "if value == false then\n" +
+            "    redis.call(\"set\",KEYS[1],ARGV[1],\"px\",ARGV[2])\n" +
+            "    return 1\n" +
+            "elseif value == ARGV[1] then\n" +
+            "    redis.call(\"pexpire\",KEYS[1],ARGV[2])\n" +
+            "    return 1\n" +
+            "else\n" +
+            "    return 0\n" +
+            "end"),
+    /**
+     * 批量为锁续时：ARGV中每两个参数对应一个KEY，分别为锁的值和过期时间（毫秒），
+     * 只有锁的值匹配时才续时。返回与KEYS一一对应的数组，1表示续时成功，0表示锁已经丢失
+     */
+    RENEW_BATCH("local result = {}\n" +
+            "for i = 1, #KEYS do\n" +
+            "    if redis.call(\"get\",KEYS[i]) == ARGV[i * 2 - 1] then\n" +
+            "        result[i] = redis.call(\"pexpire\",KEYS[i],ARGV[i * 2])\n" +
+            "    else\n" +
+            "        result[i] = 0\n" +
+            "    end\n" +
+            "end\n" +
+            "return result"),
+    /**
+     * 获取公平锁。KEYS[1]为锁，KEYS[2]为等待队列(list)，KEYS[3]为等待者的超时时间(zset)；
+     * ARGV[1]为锁的值，ARGV[2]为锁的过期时间（毫秒），ARGV[3]为等待者在队列中的超时时间（毫秒），ARGV[4]为当前时间（毫秒），ARGV[5]为1时获取失败则排队。
+     * 先清理队首已经超时的等待者；锁已经属于自己（被直接移交）时续时；锁空闲且队列为空或自己是队首时获取锁；
+     * 否则（ARGV[5]为1时）进入队尾或者刷新自己的超时时间。返回1表示获取成功，0表示失败
+     */
+    FAIR_ACQUIRE("while true do\n" +
+            "    local head = redis.call(\"lindex\",KEYS[2],0)\n" +
+            "    if head == false then\n" +
+            "        break\n" +
+            "    end\n" +
+            "    local deadline = redis.call(\"zscore\",KEYS[3],head)\n" +
+            "    if deadline and tonumber(deadline) >= tonumber(ARGV[4]) then\n" +
+            "        break\n" +
+            "    end\n" +
+            "    redis.call(\"lpop\",KEYS[2])\n" +
+            "    redis.call(\"zrem\",KEYS[3],head)\n" +
+            "end\n" +
+            "local owner = redis.call(\"get\",KEYS[1])\n" +
+            "if owner == ARGV[1] then\n" +
+            "    redis.call(\"pexpire\",KEYS[1],ARGV[2])\n" +
+            "    return 1\n" +
+            "end\n" +
+            "if owner == false then\n" +
+            "    local head = redis.call(\"lindex\",KEYS[2],0)\n" +
+            "    if head == false or head == ARGV[1] then\n" +
+            "        if head == ARGV[1] then\n" +
+            "            redis.call(\"lpop\",KEYS[2])\n" +
+            "            redis.call(\"zrem\",KEYS[3],ARGV[1])\n" +
+            "        end\n" +
+            "        redis.call(\"set\",KEYS[1],ARGV[1],\"px\",ARGV[2])\n" +
+            "        return 1\n" +
+            "    end\n" +
+            "end\n" +
+            "if ARGV[5] == \"1\" then\n" +
+            "    if redis.call(\"zscore\",KEYS[3],ARGV[1]) == false then\n" +
+            "        redis.call(\"rpush\",KEYS[2],ARGV[1])\n" +
+            "    end\n" +
+            "    redis.call(\"zadd\",KEYS[3],tonumber(ARGV[4]) + tonumber(ARGV[3]),ARGV[1])\n" +
+            "end\n" +
+            "return 0"),
+    /**
+     * 释放公平锁，并将锁直接移交给队首的等待者。KEYS与{@link #FAIR_ACQUIRE}相同；
+     * ARGV[1]为锁的值，ARGV[2]为锁的过期时间（毫秒），ARGV[3]为当前时间（毫秒），ARGV[4]为通知频道。
+     * 跳过已经超时的等待者，将锁的值设置为下一个等待者，并向频道发送下一个持有者的值。
+     * 返回0表示锁不属于自己，1表示释放后锁空闲，2表示已经移交给下一个等待者
+     */
+    FAIR_RELEASE("if redis.call(\"get\",KEYS[1]) ~= ARGV[1] then\n" +
+            "    return 0\n" +
+            "end\n" +
+            "while true do\n" +
+            "    local head = redis.call(\"lpop\",KEYS[2])\n" +
+            "    if head == false then\n" +
+            "        break\n" +
+            "    end\n" +
+            "    local deadline = redis.call(\"zscore\",KEYS[3],head)\n" +
+            "    redis.call(\"zrem\",KEYS[3],head)\n" +
+            "    if deadline and tonumber(deadline) >= tonumber(ARGV[3]) then\n" +
+            "        redis.call(\"set\",KEYS[1],head,\"px\",ARGV[2])\n" +
+            "        redis.call(\"publish\",ARGV[4],head)\n" +
+            "        return 2\n" +
+            "    end\n" +
+            "end\n" +
+            "redis.call(\"del\",KEYS[1])\n" +
+            "return 1"),
+    /**
+     * 放弃等待公平锁：从等待队列中删除自己。KEYS与{@link #FAIR_ACQUIRE}相同，ARGV[1]为锁的值。
+     * 返回1表示在放弃之前锁已经移交给了自己，0表示已经放弃
+     */
+    FAIR_CANCEL("redis.call(\"lrem\",KEYS[2],0,ARGV[1])\n" +
+            "redis.call(\"zrem\",KEYS[3],ARGV[1])\n" +
+            "if redis.call(\"get\",KEYS[1]) == ARGV[1] then\n" +
+            "    return 1\n" +
+            "end\n" +
+            "return 0"),
+    /**
+     * 同时获取多个锁：所有KEYS都空闲（或者已经属于ARGV[1]）时，全部设置为ARGV[1]、过期时间为ARGV[2]毫秒，否则一个都不设置。
+     * 返回1表示全部获取成功，0表示有锁被其他线程持有
+     */
+    MULTI_ACQUIRE("for i = 1, #KEYS do\n" +
+            "    local value = redis.call(\"get\",KEYS[i])\n" +
+            "    if value ~= false and value ~= ARGV[1] then\n" +
+            "        return 0\n" +
+            "    end\n" +
+            "end\n" +
+            "for i = 1, #KEYS do\n" +
+            "    redis.call(\"set\",KEYS[i],ARGV[1],\"px\",ARGV[2])\n" +
+            "end\n" +
+            "return 1"),
+    /**
+     * 同时释放多个锁：删除值等于ARGV[1]的KEYS，返回删除的数量
+     */
+    MULTI_RELEASE("local count = 0\n" +
+            "for i = 1, #KEYS do\n" +
+            "    if redis.call(\"get\",KEYS[i]) == ARGV[1] then\n" +
+            "        count = count + redis.call(\"del\",KEYS[i])\n" +
+            "    end\n" +
+            "end\n" +
+            "return count");
+
+    private final String lua;
+
+    LockScript(String lua) {
+        this.lua = lua;
+    }
+
+    public String getLua() {
+        return lua;
+    }
+}
@@ -0,0 +1,194 @@
+package org.mallen.test.learning.dl.redis.lettuce;
+
+import io.lettuce.core.pubsub.RedisPubSubAdapter;
+import io.lettuce.core.pubsub.StatefulRedisPubSubConnection;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 锁释放消息的分发器：每个客户端只使用一个订阅连接，每个锁使用单独的频道。
+ * 有线程等待某个锁时才订阅该锁的频道，最后一个等待者离开时取消订阅；
+ * 收到释放消息后，只唤醒该锁最早的一个等待者，而不是唤醒所有锁的所有等待者。
+ * 如果等待者登记时指定了owner（例如公平锁直接将锁移交给了下一个等待者，消息内容为新的持有者），则只唤醒owner与消息内容相同的等待者。
+ *
+ * @author mallen
+ * @date 6/8/20
+ */
+public class ReleaseNotifier {
+    private final StatefulRedisPubSubConnection<String, String> connection;
+    private final String channelPrefix;
+    /**
+     * 每个锁的等待者，所有访问都需要持有当前对象的锁
+     */
+    private final Map<String, KeyWaiters> waiters = new HashMap<>();
+
+    /**
+     * @param connection    订阅连接，由当前对象独占
+     * @param channelPrefix 频道前缀，锁key对应的频道为：前缀 + ":" + key
+     */
+    public ReleaseNotifier(StatefulRedisPubSubConnection<String, String> connection, String channelPrefix) {
+        this.connection = connection;
+        this.channelPrefix = channelPrefix + ":";
+        this.connection.addListener(new RedisPubSubAdapter<String, String>() {
+            @Override
+            public void message(String channel, String message) {
+                if (channel.startsWith(ReleaseNotifier.this.channelPrefix)) {
+                    wakeUpNext(channel.substring(ReleaseNotifier.this.channelPrefix.length()), message);
+                }
+            }
+        });
+    }
+
+    /**
+     * 锁key对应的释放消息频道，释放锁后需要向该频道发送消息
+     */
+    public String channel(String key) {
+        return channelPrefix + key;
+    }
+
+    /**
+     * 登记为锁的等待者。返回的CompletionStage在订阅成功后完成，在此之前发送的释放消息收不到，
+     * 所以调用者需要在订阅成功后再检查一次锁是否已经释放
+     */
+    public CompletionStage<Waiter> register(String key) {
+        return register(key, null);
+    }
+
+    /**
+     * 登记为锁的等待者，只有消息内容与owner相同时才会被唤醒
+     *
+     * @see #register(String)
+     */
+    public synchronized CompletionStage<Waiter> register(String key, String owner) {
+        KeyWaiters keyWaiters = waiters.get(key);
+        if (null == keyWaiters) {
+            keyWaiters = new KeyWaiters(connection.async().subscribe(channel(key)));
+            waiters.put(key, keyWaiters);
+        }
+        Waiter waiter = new Waiter(key, owner);
+        keyWaiters.queue.add(waiter);
+        return keyWaiters.subscribed.thenApply(v -> waiter);
+    }
+
+    /**
+     * 等待结束（不论是否被唤醒）后需要调用，以便没有等待者时取消订阅
+     */
+    public synchronized void cancel(Waiter waiter) {
+        KeyWaiters keyWaiters = waiters.get(waiter.key);
+        if (null == keyWaiters) {
+            return;
+        }
+        keyWaiters.queue.remove(waiter);
+        if (keyWaiters.queue.isEmpty()) {
+            waiters.remove(waiter.key);
+            // 与订阅使用同一个连接，命令按顺序执行，所以之后的重新订阅不会被这次取消订阅覆盖
+            connection.async().unsubscribe(channel(waiter.key));
+        }
+    }
+
+    public void close() {
+        connection.close();
+    }
+
+    private void wakeUpNext(String key, String message) {
+        while (true) {
+            Waiter next = null;
+            synchronized (this) {
+                KeyWaiters keyWaiters = waiters.get(key);
+                if (null == keyWaiters) {
+                    return;
+                }
+                Iterator<Waiter> iterator = keyWaiters.queue.iterator();
+                while (iterator.hasNext()) {
+                    Waiter waiter = iterator.next();
+                    if (waiter.released.isDone()) {
+                        // 跳过已经因为超时而醒来的等待者
+                        iterator.remove();
+                    } else if (null == waiter.owner ? null == next : waiter.owner.equals(message)) {
+                        next = waiter;
+                        if (null != waiter.owner) {
+                            break;
+                        }
+                    }
+                }
+                if (null != next) {
+                    keyWaiters.queue.remove(next);
+                }
+            }
+            // 选中之后等待者可能刚好超时，此时把消息交给下一个等待者
+            if (null == next || next.released.complete(message)) {
+                return;
+            }
+        }
+    }
+
+    public static class Waiter {
+        private final String key;
+        private final String owner;
+        private final CompletableFuture<String> released = new CompletableFuture<>();
+
+        Waiter(String key, String owner) {
+            this.key = key;
+            this.owner = owner;
+        }
+
+        /**
+         * 等待锁释放。超时或者被中断时把自己标记为已完成，在{@link ReleaseNotifier#cancel(Waiter)}之前收到的释放消息会跳过自己，分配给下一个等待者
+         *
+         * @return 被唤醒返回true，超时返回false
+         */
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            try {
+                released.get(timeout, unit);
+                return true;
+            } catch (TimeoutException e) {
+                // 标记失败说明超时的同时被唤醒了，按被唤醒处理，以免消息被丢弃
+                return !released.complete(null);
+            } catch (InterruptedException e) {
+                released.complete(null);
+                throw e;
+            } catch (ExecutionException e) {
+                return true;
+            }
+        }
+
+        /**
+         * 锁释放（或者被{@link #wakeUp()}唤醒）时完成，值为释放消息的内容（被{@link #wakeUp()}唤醒时为null）
+         */
+        public CompletionStage<String> onRelease() {
+            return released;
+        }
+
+        /**
+         * 唤醒当前等待者的释放消息的内容，没有被消息唤醒时返回null
+         */
+        public String getMessage() {
+            return released.getNow(null);
+        }
+
+        /**
+         * 唤醒等待者，例如等待超时，或者订阅后发现锁已经释放
+         */
+        public void wakeUp() {
+            released.complete(null);
+        }
+    }
+
+    private static class KeyWaiters {
+        private final CompletionStage<Void> subscribed;
+        private final Queue<Waiter> queue = new ArrayDeque<>();
+
+        KeyWaiters(CompletionStage<Void> subscribed) {
+            this.subscribed = subscribed;
+        }
+    }
+}
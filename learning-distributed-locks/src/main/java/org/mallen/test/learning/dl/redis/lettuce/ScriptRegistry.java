@@ -0,0 +1,107 @@
+package org.mallen.test.learning.dl.redis.lettuce;
+
+import io.lettuce.core.RedisNoScriptException;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import io.lettuce.core.cluster.api.sync.RedisClusterCommands;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * lua脚本注册表：每个连接只通过SCRIPT LOAD加载一次脚本，之后使用EVALSHA按摘要执行，
+ * 避免每次EVAL都传输完整的脚本，以及服务端每次都计算脚本的摘要。
+ * 如果服务端返回NOSCRIPT（脚本缓存被清空，或者发生了主从切换），则重新加载脚本后重试一次。
+ * 集群模式下SCRIPT LOAD会发送到所有节点，EVALSHA按第一个key的slot路由。
+ *
+ * @author mallen
+ * @date 6/4/20
+ */
+public class ScriptRegistry {
+    private final Supplier<RedisClusterCommands<String, String>> sync;
+    private final Supplier<RedisClusterAsyncCommands<String, String>> async;
+    /**
+     * 已经在当前连接上加载过的脚本及其摘要
+     */
+    private final Map<LockScript, String> digests = new ConcurrentHashMap<>();
+
+    public ScriptRegistry(StatefulRedisConnection<String, String> connection) {
+        this.sync = connection::sync;
+        this.async = connection::async;
+    }
+
+    public ScriptRegistry(StatefulRedisClusterConnection<String, String> connection) {
+        this.sync = connection::sync;
+        this.async = connection::async;
+    }
+
+    /**
+     * 使用指定的命令接口执行脚本，例如{@link CommandBatcher}的命令接口
+     */
+    public ScriptRegistry(Supplier<RedisClusterCommands<String, String>> sync, Supplier<RedisClusterAsyncCommands<String, String>> async) {
+        this.sync = sync;
+        this.async = async;
+    }
+
+    /**
+     * 同步执行脚本
+     */
+    public <T> T eval(LockScript script, ScriptOutputType type, String[] keys, String... args) {
+        String digest = digests.get(script);
+        if (null == digest) {
+            digest = load(script);
+        }
+        try {
+            return sync.get().evalsha(digest, type, keys, args);
+        } catch (RedisNoScriptException e) {
+            // 服务端的脚本缓存已经丢失，重新加载
+            return sync.get().evalsha(load(script), type, keys, args);
+        }
+    }
+
+    /**
+     * 异步执行脚本
+     */
+    public <T> CompletionStage<T> evalAsync(LockScript script, ScriptOutputType type, String[] keys, String... args) {
+        String digest = digests.get(script);
+        CompletionStage<String> loaded = null == digest ? loadAsync(script) : CompletableFuture.completedFuture(digest);
+        return loaded.thenCompose(d -> async.get().<T>evalsha(d, type, keys, args))
+                .handle((value, ex) -> {
+                    if (null == ex) {
+                        return CompletableFuture.completedFuture(value);
+                    }
+                    if (unwrap(ex) instanceof RedisNoScriptException) {
+                        // 服务端的脚本缓存已经丢失，重新加载
+                        return loadAsync(script).thenCompose(d -> async.get().<T>evalsha(d, type, keys, args));
+                    }
+                    CompletableFuture<T> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(unwrap(ex));
+                    return failed;
+                })
+                .thenCompose(Function.identity());
+    }
+
+    private String load(LockScript script) {
+        String digest = sync.get().scriptLoad(script.getLua());
+        digests.put(script, digest);
+        return digest;
+    }
+
+    private CompletionStage<String> loadAsync(LockScript script) {
+        return async.get().scriptLoad(script.getLua()).thenApply(digest -> {
+            digests.put(script, digest);
+            return digest;
+        });
+    }
+
+    private static Throwable unwrap(Throwable ex) {
+        return ex instanceof CompletionException && null != ex.getCause() ? ex.getCause() : ex;
+    }
+}
@@ -1,55 +1,80 @@
 package org.mallen.test.learning.dl.redis.lettuce.advance;
 
-import io.lettuce.core.RedisClient;
 import io.lettuce.core.RedisURI;
 import io.lettuce.core.ScriptOutputType;
 import io.lettuce.core.SetArgs;
-import io.lettuce.core.api.StatefulRedisConnection;
-import io.lettuce.core.api.async.RedisAsyncCommands;
-import io.lettuce.core.pubsub.RedisPubSubAdapter;
-import io.lettuce.core.pubsub.RedisPubSubListener;
-import io.lettuce.core.pubsub.StatefulRedisPubSubConnection;
-import io.lettuce.core.pubsub.api.async.RedisPubSubAsyncCommands;
-import io.lettuce.core.pubsub.api.sync.RedisPubSubCommands;
+import org.mallen.test.learning.dl.redis.lettuce.LeaseWatchdog;
+import org.mallen.test.learning.dl.redis.lettuce.LockClient;
+import org.mallen.test.learning.dl.redis.lettuce.LockScript;
+import org.mallen.test.learning.dl.redis.lettuce.ReleaseNotifier;
+import org.mallen.test.learning.dl.DistributedLock;
+import org.mallen.test.learning.dl.LockingException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.CountDownLatch;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author mallen
  * @date 2/17/20
  */
-public class LettuceAdvanceLock {
-    private static RedisClient REDIS_CLIENT = null;
-    private static StatefulRedisConnection<String, String> CONNECTION = null;
-    private static ThreadLocal<StatefulRedisPubSubConnection<String, String>> PSUB_CONNECTION = new ThreadLocal<>();
+public class LettuceAdvanceLock implements DistributedLock {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LettuceAdvanceLock.class);
+    /**
+     * 同一个地址的所有锁共享的客户端（单机或者集群），以及客户端上的续时看门狗
+     */
+    private final LockClient client;
+    /**
+     * 锁释放消息的分发器，所有等待者共享一个订阅连接，每个锁使用单独的频道
+     */
+    private final ReleaseNotifier notifier;
     private static String CHANNEL_NAME = "LettuceAdvanceLock";
     /**
      * 过期时间：10s
      */
     private static int EXPIRE = 10;
     private static SetArgs LOCK_ARGS = SetArgs.Builder.nx().ex(EXPIRE);
-    private static SetArgs REEXPIRE_ARGS = SetArgs.Builder.ex(EXPIRE);
-    private static String RELEASE_LUA =
-            "if redis.call(\"get\",KEYS[1]) == ARGV[1] then\n" +
-                    "    return redis.call(\"del\",KEYS[1])\n" +
-                    "else\n" +
-                    "    return 0\n" +
-                    "end";
+    /**
+     * 通过{@link DistributedLock}接口使用时，锁对应的key
+     */
+    private String lockKey;
+    private String id;
 
     public LettuceAdvanceLock() {
-        RedisURI redisURI = RedisURI.builder()
+        this(RedisURI.builder()
                 .withHost("127.0.0.1")
                 .withPort(6379)
                 .withDatabase(1)
-                .build();
-        REDIS_CLIENT = RedisClient.create(redisURI);
-        CONNECTION = REDIS_CLIENT.connect();
+                .build(), null);
+    }
+
+    public LettuceAdvanceLock(String lockKey) {
+        this();
+        this.lockKey = lockKey;
+    }
+
+    public LettuceAdvanceLock(RedisURI redisURI, String lockKey) {
+        this(LockClient.standalone(redisURI), lockKey);
+    }
+
+    /**
+     * @param client 通过{@link LockClient#standalone(RedisURI)}或者{@link LockClient#cluster(java.util.List)}获取的客户端，获取时得到的引用交给锁管理，{@link #destory()}时释放
+     */
+    public LettuceAdvanceLock(LockClient client, String lockKey) {
+        this.client = client;
+        this.notifier = client.notifier(CHANNEL_NAME);
+        this.lockKey = lockKey;
+        this.id = UUID.randomUUID().toString();
     }
 
     public Boolean tryLock(String key, String value) {
         Boolean result = false;
         try {
-            String rc = CONNECTION.sync().set(key, value, LOCK_ARGS);
+            String rc = client.sync().set(key, value, LOCK_ARGS);
             if ("OK".equals(rc)) {
                 result = true;
             }
@@ -62,7 +87,7 @@ public class LettuceAdvanceLock {
 
     public void releaseLock(String key, String value) {
         try {
-            Long result = CONNECTION.sync().eval(RELEASE_LUA, ScriptOutputType.INTEGER, new String[]{key}, value);
+            Long result = client.scripts().eval(LockScript.RELEASE, ScriptOutputType.INTEGER, new String[]{key}, value);
             // 返回1表示执行del命令成功
             if (1 != result) {
                 System.out.println("释放锁失败");
@@ -72,13 +97,105 @@ public class LettuceAdvanceLock {
         }
     }
 
-    public void destory() {
-        if (null != CONNECTION) {
-            CONNECTION.close();
+    /**
+     * 异步获取锁，只尝试一次，不会阻塞调用线程
+     *
+     * @return 获取成功时完成为true，否则完成为false
+     */
+    public CompletionStage<Boolean> tryLockAsync(String key, String value) {
+        return client.async().set(key, value, LOCK_ARGS).thenApply("OK"::equals);
+    }
+
+    /**
+     * 异步获取锁，直到获取成功。获取失败时等待锁释放消息后重试，等待期间不占用任何线程；取消返回的CompletionStage后停止重试
+     */
+    public CompletionStage<Boolean> lockAsync(String key, String value) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        attemptAsync(key, value, false, 0, result);
+        return result;
+    }
+
+    /**
+     * 异步获取锁，最多等待timeout时间。获取失败时等待锁释放消息后重试，等待期间不占用任何线程；取消返回的CompletionStage后停止重试
+     *
+     * @return 在等待时间内获取成功时完成为true，超时完成为false
+     */
+    public CompletionStage<Boolean> lockAsync(String key, String value, long timeout, TimeUnit unit) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        attemptAsync(key, value, true, System.nanoTime() + unit.toNanos(timeout), result);
+        return result;
+    }
+
+    /**
+     * 异步释放锁
+     *
+     * @return 释放成功时完成为true；锁已经不属于value（已过期或被其他线程持有）时完成为false
+     */
+    public CompletionStage<Boolean> releaseAsync(String key, String value) {
+        return client.scripts().<Long>evalAsync(LockScript.RELEASE, ScriptOutputType.INTEGER, new String[]{key}, value)
+                // 返回1表示执行del命令成功
+                .thenApply(result -> 1 == result)
+                // 释放成功后，发送解锁消息
+                .thenCompose(released -> released
+                        ? client.async().publish(notifier.channel(key), value).thenApply(receivers -> true)
+                        : CompletableFuture.completedFuture(false));
+    }
+
+    @Override
+    public void lock() throws LockingException {
+        while (!tryLock()) {
+            try {
+                waitForRelease(getLockKey(), EXPIRE, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new LockingException("获取锁时出现InterruptedException", e);
+            }
+        }
+    }
+
+    @Override
+    public boolean tryLock() {
+        String locker = getLocker();
+        if (tryLock(getLockKey(), locker)) {
+            watchLease(getLockKey(), locker, (key, value) -> LOGGER.warn("锁已丢失，key：{}", key));
+            return true;
         }
-        if (null != REDIS_CLIENT) {
-            REDIS_CLIENT.shutdown();
+        return false;
+    }
+
+    @Override
+    public boolean tryLock(long timeout, TimeUnit unit) throws LockingException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!tryLock()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                waitForRelease(getLockKey(), remaining, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
         }
+        return true;
+    }
+
+    @Override
+    public void unlock() throws LockingException {
+        String locker = getLocker();
+        unwatchLease(getLockKey(), locker);
+        releaseLock(getLockKey(), locker);
+        // 发送解锁消息
+        pubReleaseMsg(getLockKey(), locker);
+    }
+
+    @Override
+    public long getLeaseTime(TimeUnit unit) {
+        return unit.convert(EXPIRE, TimeUnit.SECONDS);
+    }
+
+    public void destory() {
+        client.release();
     }
 
     /**
@@ -90,8 +207,10 @@ public class LettuceAdvanceLock {
     public Boolean reExpire(String key, String value) {
         Boolean result = false;
         try {
-            String rc = CONNECTION.sync().set(key, value, REEXPIRE_ARGS);
-            if ("OK".equals(rc)) {
+            // 只有锁仍然属于value时才续时，避免覆盖其他线程已经持有的锁
+            Long rc = client.scripts().eval(LockScript.RENEW, ScriptOutputType.INTEGER, new String[]{key},
+                    value, String.valueOf(TimeUnit.SECONDS.toMillis(EXPIRE)));
+            if (1 == rc) {
                 result = true;
             }
         } catch (Exception ex) {
@@ -100,59 +219,118 @@ public class LettuceAdvanceLock {
         return result;
     }
 
-    public void pubReleaseMsg(String uuid) {
-        // 发布/订阅消息时，每个线程需要单独拥有一个连接，所以需要使用线程本地变量来保存连接
-        if (null == PSUB_CONNECTION.get()) {
-            synchronized (LettuceAdvanceLock.class) {
-                if (null == PSUB_CONNECTION.get()) {
-                    PSUB_CONNECTION.set(REDIS_CLIENT.connectPubSub());
-                }
-            }
-        }
+    /**
+     * 由看门狗为锁续时，直到调用{@link #unwatchLease(String, String)}或者锁丢失
+     *
+     * @param listener 锁丢失（续时时发现锁已经不属于value）时的回调
+     */
+    public void watchLease(String key, String value, LeaseWatchdog.LockLostListener listener) {
+        client.watchdog().watch(key, value, EXPIRE, TimeUnit.SECONDS, listener);
+    }
+
+    /**
+     * 停止为锁续时，需要在释放锁之前调用
+     */
+    public void unwatchLease(String key, String value) {
+        client.watchdog().unwatch(key, value);
+    }
+
+    /**
+     * 发送锁释放消息，只有等待该锁的线程会收到
+     */
+    public void pubReleaseMsg(String key, String uuid) {
         try {
-            RedisPubSubCommands sync = PSUB_CONNECTION.get().sync();
-            sync.publish(CHANNEL_NAME, uuid);
+            // 普通连接也可以发布消息，不需要使用订阅连接
+            client.sync().publish(notifier.channel(key), uuid);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    public void subReleaseMsg(CountDownLatch notifier) {
-        // 发布/订阅消息时，每个线程需要单独拥有一个连接，所以需要使用线程本地变量来保存连接
-        if (null == PSUB_CONNECTION.get()) {
-            synchronized (LettuceAdvanceLock.class) {
-                if (null == PSUB_CONNECTION.get()) {
-                    PSUB_CONNECTION.set(REDIS_CLIENT.connectPubSub());
-                }
+    /**
+     * 订阅锁解除消息，并等待锁解除（为了防止拥有锁的节点在发送解锁消息之前挂掉，最多等待timeout时间）
+     *
+     * @return 收到锁解除消息或者锁已经不存在时返回true，超时返回false
+     */
+    public boolean waitForRelease(String key, long timeout, TimeUnit unit) throws InterruptedException {
+        ReleaseNotifier.Waiter waiter = notifier.register(key).toCompletableFuture().join();
+        try {
+            // 订阅成功之前锁可能已经被释放了，此时收不到消息，所以订阅后再检查一次锁是否存在
+            if (0 == client.sync().exists(key)) {
+                return true;
             }
+            return waiter.await(timeout, unit);
+        } finally {
+            notifier.cancel(waiter);
         }
-        RedisPubSubCommands<String, String> sync = PSUB_CONNECTION.get().sync();
-        sync.getStatefulConnection().addListener(new RedisPubSubAdapter() {
-            @Override
-            public void message(Object channel, Object message) {
-                // 接收到消息，通知业务线程，开始竞争锁
-                notifier.countDown();
-            }
-        });
-        sync.subscribe(CHANNEL_NAME);
     }
 
-    public void unsubReleaseMsg() {
-        // 发布/订阅消息时，每个线程需要单独拥有一个连接，所以需要使用线程本地变量来保存连接
-        if (null == PSUB_CONNECTION.get()) {
-            synchronized (LettuceAdvanceLock.class) {
-                if (null == PSUB_CONNECTION.get()) {
-                    PSUB_CONNECTION.set(REDIS_CLIENT.connectPubSub());
+    /**
+     * @param timed    是否限时，为false时一直重试
+     * @param deadline 截止时间（System.nanoTime()），只在timed为true时有效
+     * @param result   调用者取消（或者以其他方式完成）后不再重试
+     */
+    private void attemptAsync(String key, String value, boolean timed, long deadline, CompletableFuture<Boolean> result) {
+        if (result.isDone()) {
+            return;
+        }
+        tryLockAsync(key, value).whenComplete((locked, ex) -> {
+            if (null != ex) {
+                result.completeExceptionally(ex);
+                return;
+            }
+            if (locked) {
+                if (!result.complete(true)) {
+                    // 获取成功之前调用者已经放弃，不会再有人释放这个锁
+                    releaseAsync(key, value);
                 }
+                return;
             }
-        }
-        RedisPubSubCommands<String, String> sync = PSUB_CONNECTION.get().sync();
-        sync.unsubscribe(CHANNEL_NAME);
+            long wait = TimeUnit.SECONDS.toNanos(EXPIRE);
+            if (timed) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    result.complete(false);
+                    return;
+                }
+                wait = Math.min(wait, remaining);
+            }
+            // 未获取到锁，等待锁释放消息后重试；为了防止拥有锁的节点在发送解锁消息之前挂掉，最多等待wait时间
+            long timeout = wait;
+            notifier.register(key).thenCompose(waiter -> {
+                ScheduledFuture<?> timer = client.executor().schedule(waiter::wakeUp, timeout, TimeUnit.NANOSECONDS);
+                // 订阅成功之前锁可能已经被释放了，此时收不到消息，所以订阅后再检查一次锁是否存在
+                client.async().exists(key).thenAccept(count -> {
+                    if (0 == count) {
+                        waiter.wakeUp();
+                    }
+                });
+                return waiter.onRelease().whenComplete((v, e) -> {
+                    // 被释放消息唤醒时取消定时器，以免重试时在事件循环上堆积定时任务
+                    timer.cancel(false);
+                    notifier.cancel(waiter);
+                });
+            }).whenComplete((v, e) -> {
+                if (null != e) {
+                    result.completeExceptionally(e);
+                } else {
+                    attemptAsync(key, value, timed, deadline, result);
+                }
+            });
+        });
     }
 
-    public void destoryPsub() {
-        if (null != PSUB_CONNECTION.get()) {
-            PSUB_CONNECTION.get().close();
+    private String getLockKey() {
+        if (null == lockKey) {
+            throw new LockingException("没有指定lockKey，请使用LettuceAdvanceLock(lockKey)构造锁");
         }
+        return lockKey;
+    }
+
+    /**
+     * 锁的值，用于标识持有锁的线程，释放锁时只能释放自己持有的锁
+     */
+    private String getLocker() {
+        return id + ":" + Thread.currentThread().getId();
     }
 }
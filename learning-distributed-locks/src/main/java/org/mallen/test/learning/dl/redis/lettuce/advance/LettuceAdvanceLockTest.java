@@ -7,7 +7,7 @@ import java.util.concurrent.*;
 
 /**
  * 使用Lettuce的api，采用Redis的单实例加锁模式，实现分布式锁，与{@link org.mallen.test.learning.dl.redis.lettuce.LettuceLock}相比，主要有如下改进：
- * 1. 增加获取到锁的线程的守护线程，如果业务处理时间大于锁过期时间，则为锁续时间
+ * 1. 获取到锁后交给共享的看门狗续时，如果业务处理时间大于锁过期时间，则为锁续时间
  * 2. 释放锁时，发送事件告知其他节点。以解决其他节点多次自旋带来的问题
  * TODO：
  * 1.如果获取到锁的节点在发送解锁事件过程中出现问题，等待锁的节点就接收不到消息，从而导致死锁。所在使用了await方法的超时版本，会不会带来性能问题？
@@ -43,7 +43,6 @@ public class LettuceAdvanceLockTest {
         private static String LOCK_KEY = "tickets_lock";
         private final CountDownLatch latch;
         private LettuceAdvanceLock lettuceLock;
-        private ScheduledExecutorService scheduledExecutor = Executors.newScheduledThreadPool(3);
 
         public Seller(CountDownLatch latch, LettuceAdvanceLock lettuceLock) {
             this.latch = latch;
@@ -67,32 +66,20 @@ public class LettuceAdvanceLockTest {
                     }
                 } else {
                     try {
-                        CountDownLatch notifier = new CountDownLatch(1);
-                        // 未获取到锁，订阅锁解除消息
-                        lettuceLock.subReleaseMsg(notifier);
-                        // 等待锁解除(为了防止拥有锁的节点在发送解锁消息之前挂掉，此处设置最长等待时间，如果超过该时间，则再次重试)
-                        if (!notifier.await(10, TimeUnit.SECONDS)) {
-                            // 超时导致不再等待，释放notifier
-                            notifier.countDown();
-                        }
-                        // 取消消息订阅
-                        lettuceLock.unsubReleaseMsg();
+                        // 未获取到锁，订阅锁解除消息，等待锁解除(为了防止拥有锁的节点在发送解锁消息之前挂掉，此处设置最长等待时间，如果超过该时间，则再次重试)
+                        lettuceLock.waitForRelease(LOCK_KEY, 10, TimeUnit.SECONDS);
                     } catch (InterruptedException e) {
                         e.printStackTrace();
                     }
                 }
             }
-            // 释放资源
-            lettuceLock.destoryPsub();
-            scheduledExecutor.shutdownNow();
-
             latch.countDown();
         }
 
         private Boolean doWithLock(String uuid) {
             Boolean continueExe = Boolean.TRUE;
-            // 获取到锁，注册一个任务，在锁失效前，增加过期时间
-            Future future = addReExpireThread(uuid);
+            // 获取到锁，交给看门狗在锁失效前增加过期时间
+            lettuceLock.watchLease(LOCK_KEY, uuid, (key, value) -> System.out.println("锁已丢失：" + value));
             // 开始卖票逻辑
             if (tickets > 0) {
                 soldTickets.add(tickets);
@@ -101,22 +88,14 @@ public class LettuceAdvanceLockTest {
             } else {
                 continueExe = Boolean.FALSE;
             }
-            // 执行逻辑完毕，取消续时线程
-            future.cancel(false);
+            // 执行逻辑完毕，停止续时
+            lettuceLock.unwatchLease(LOCK_KEY, uuid);
             // 执行逻辑完毕，释放锁
             lettuceLock.releaseLock(LOCK_KEY, uuid);
             // 发送解锁消息
-            lettuceLock.pubReleaseMsg(uuid);
+            lettuceLock.pubReleaseMsg(LOCK_KEY, uuid);
 
             return continueExe;
         }
-
-        private ScheduledFuture addReExpireThread(String uuid) {
-            ScheduledFuture future = scheduledExecutor.scheduleAtFixedRate(
-                    () -> lettuceLock.reExpire(LOCK_KEY, uuid),
-                    // 锁过期时间为10秒，所以此处设置为8s为锁续时
-                    8, 8, TimeUnit.SECONDS);
-            return future;
-        }
     }
 }
@@ -0,0 +1,196 @@
+package org.mallen.test.learning.dl.redis.lettuce.fair;
+
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.ScriptOutputType;
+import org.mallen.test.learning.dl.DistributedLock;
+import org.mallen.test.learning.dl.LockingException;
+import org.mallen.test.learning.dl.redis.lettuce.LockClient;
+import org.mallen.test.learning.dl.redis.lettuce.LockKeys;
+import org.mallen.test.learning.dl.redis.lettuce.LockScript;
+import org.mallen.test.learning.dl.redis.lettuce.ReleaseNotifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于Redis的公平锁：等待者在Redis中按先来后到排队（list保存顺序，zset保存每个等待者的超时时间），
+ * 释放锁时由lua脚本直接把锁移交给队首的等待者，并只通知该等待者。
+ * 与{@link org.mallen.test.learning.dl.redis.lettuce.advance.LettuceAdvanceLock}相比，锁释放后等待者之间不再需要竞争SET NX，
+ * 被通知的等待者收到消息时就已经持有锁了，所以不会出现某些线程一直获取不到锁的情况，获取锁的延迟也更加可控。
+ * 等待者需要定时刷新自己在队列中的超时时间，挂掉的等待者超时后会被跳过；如果锁恰好移交给了刚挂掉的等待者，需要等锁过期后才能被下一个等待者获取。
+ *
+ * @author mallen
+ * @date 6/10/20
+ */
+public class LettuceFairLock implements DistributedLock {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LettuceFairLock.class);
+    private static final String CHANNEL_NAME = "LettuceFairLock";
+    /**
+     * 过期时间：10s
+     */
+    private static final int EXPIRE = 10;
+    /**
+     * 等待者刷新自己在队列中的超时时间的间隔：2s
+     */
+    private static final long WAIT_REFRESH = 2000;
+    /**
+     * 等待者在队列中的超时时间，超过该时间没有刷新，则认为等待者已经挂掉
+     */
+    private static final long WAIT_TIMEOUT = WAIT_REFRESH * 3;
+    private final LockClient client;
+    private final ReleaseNotifier notifier;
+    private final String lockKey;
+    private final String[] keys;
+    private final String id;
+
+    public LettuceFairLock(String lockKey) {
+        this(RedisURI.builder()
+                .withHost("127.0.0.1")
+                .withPort(6379)
+                .withDatabase(1)
+                .build(), lockKey);
+    }
+
+    public LettuceFairLock(RedisURI redisURI, String lockKey) {
+        this(LockClient.standalone(redisURI), lockKey);
+    }
+
+    /**
+     * @param client 通过{@link LockClient#standalone(RedisURI)}或者{@link LockClient#cluster(java.util.List)}获取的客户端，获取时得到的引用交给锁管理，{@link #destory()}时释放
+     */
+    public LettuceFairLock(LockClient client, String lockKey) {
+        this.client = client;
+        this.notifier = client.notifier(CHANNEL_NAME);
+        this.lockKey = lockKey;
+        // 队列的key与锁使用相同的hash tag，在集群模式下与锁在同一个slot
+        this.keys = new String[]{lockKey, LockKeys.related(lockKey, "queue"), LockKeys.related(lockKey, "timeout")};
+        this.id = UUID.randomUUID().toString();
+    }
+
+    @Override
+    public void lock() throws LockingException {
+        if (!tryLock(-1, TimeUnit.MILLISECONDS)) {
+            throw new LockingException("出错了，不能获取到锁");
+        }
+    }
+
+    /**
+     * 只有锁空闲并且没有其他等待者时才能获取成功，获取失败时不排队
+     */
+    @Override
+    public boolean tryLock() {
+        if (acquire(getLocker(), false)) {
+            onLocked(getLocker());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param timeout 小于0表示一直等待
+     */
+    @Override
+    public boolean tryLock(long timeout, TimeUnit unit) throws LockingException {
+        String locker = getLocker();
+        // 没有竞争时，一次请求即可获取锁
+        if (acquire(locker, false)) {
+            onLocked(locker);
+            return true;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        ReleaseNotifier.Waiter waiter = null;
+        try {
+            while (true) {
+                // 等待者只能被唤醒一次（超时也会把它标记为已完成），所以每次刷新都登记新的等待者；
+                // 先登记新的再取消旧的，订阅不会中断，并且先订阅再排队/刷新，以免错过锁的移交消息
+                ReleaseNotifier.Waiter next = notifier.register(lockKey, locker).toCompletableFuture().join();
+                if (null != waiter) {
+                    notifier.cancel(waiter);
+                }
+                waiter = next;
+                // 进入队列，或者刷新自己在队列中的超时时间；两次登记之间移交给自己的锁也在这里发现
+                if (acquire(locker, true)) {
+                    onLocked(locker);
+                    return true;
+                }
+                long wait = TimeUnit.MILLISECONDS.toNanos(WAIT_REFRESH);
+                if (timeout >= 0) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return cancel(locker);
+                    }
+                    wait = Math.min(wait, remaining);
+                }
+                if (waiter.await(wait, TimeUnit.NANOSECONDS) && locker.equals(waiter.getMessage())) {
+                    // 收到移交消息时，锁已经属于自己了，不需要再请求Redis
+                    onLocked(locker);
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            if (cancel(locker)) {
+                unlock();
+            }
+            throw new LockingException("获取锁时出现InterruptedException", e);
+        } finally {
+            if (null != waiter) {
+                notifier.cancel(waiter);
+            }
+        }
+    }
+
+    @Override
+    public void unlock() throws LockingException {
+        String locker = getLocker();
+        client.watchdog().unwatch(lockKey, locker);
+        Long result = client.scripts().eval(LockScript.FAIR_RELEASE, ScriptOutputType.INTEGER, keys,
+                locker, String.valueOf(TimeUnit.SECONDS.toMillis(EXPIRE)),
+                String.valueOf(System.currentTimeMillis()), notifier.channel(lockKey));
+        if (0 == result) {
+            throw new LockingException("锁已经不属于当前线程，不能解锁!");
+        }
+    }
+
+    @Override
+    public long getLeaseTime(TimeUnit unit) {
+        return unit.convert(EXPIRE, TimeUnit.SECONDS);
+    }
+
+    public void destory() {
+        client.release();
+    }
+
+    private boolean acquire(String locker, boolean enqueue) {
+        Long result = client.scripts().eval(LockScript.FAIR_ACQUIRE, ScriptOutputType.INTEGER, keys,
+                locker, String.valueOf(TimeUnit.SECONDS.toMillis(EXPIRE)), String.valueOf(WAIT_TIMEOUT),
+                String.valueOf(System.currentTimeMillis()), enqueue ? "1" : "0");
+        return 1 == result;
+    }
+
+    /**
+     * 放弃等待
+     *
+     * @return 放弃之前锁已经移交给了自己时返回true
+     */
+    private boolean cancel(String locker) {
+        Long result = client.scripts().eval(LockScript.FAIR_CANCEL, ScriptOutputType.INTEGER, keys, locker);
+        if (1 == result) {
+            onLocked(locker);
+            return true;
+        }
+        return false;
+    }
+
+    private void onLocked(String locker) {
+        client.watchdog().watch(lockKey, locker, EXPIRE, TimeUnit.SECONDS, (key, value) -> LOGGER.warn("锁已丢失，key：{}", key));
+    }
+
+    /**
+     * 锁的值，用于标识持有锁的线程，释放锁时只能释放自己持有的锁
+     */
+    private String getLocker() {
+        return id + ":" + Thread.currentThread().getId();
+    }
+}
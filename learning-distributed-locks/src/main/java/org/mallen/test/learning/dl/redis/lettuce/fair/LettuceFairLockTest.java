@@ -0,0 +1,91 @@
+package org.mallen.test.learning.dl.redis.lettuce.fair;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 验证公平锁的获取顺序：主线程先持有锁，然后每隔200ms启动一个线程排队等待锁，其中一个线程只等待1s，超时后放弃等待（从队列中删除自己）。
+ * 主线程再持有锁{@link #HOLD}ms（超过等待者刷新队列超时时间的间隔2s，等待者需要刷新多次）后释放，锁按排队顺序依次移交给等待者，
+ * 获取锁的顺序应该与启动顺序相同（不包括放弃等待的线程）。
+ *
+ * @author mallen
+ * @date 6/16/20
+ */
+public class LettuceFairLockTest {
+    private static final int WAITER_COUNT = 10;
+    /**
+     * 只等待1s的线程
+     */
+    private static final int IMPATIENT = 3;
+    /**
+     * 所有等待者都进入队列后，主线程继续持有锁的时间
+     */
+    private static final long HOLD = 5000;
+    /**
+     * 获取到锁的线程的编号，按获取顺序
+     */
+    private static final List<Integer> ORDER = Collections.synchronizedList(new ArrayList<>());
+
+    public static void main(String[] args) throws InterruptedException {
+        LettuceFairLock lock = new LettuceFairLock("fair_lock");
+        lock.lock();
+        CountDownLatch latch = new CountDownLatch(WAITER_COUNT);
+        for (int i = 0; i < WAITER_COUNT; i++) {
+            Thread thread = new Thread(new Waiter(latch, lock, i));
+            thread.setName("thread" + i);
+            thread.start();
+            // 等待上一个线程进入队列，保证排队顺序与启动顺序相同
+            TimeUnit.MILLISECONDS.sleep(200);
+        }
+        // 此时放弃等待的线程已经超时，其他等待者继续等待，期间多次刷新自己在队列中的超时时间
+        TimeUnit.MILLISECONDS.sleep(HOLD);
+        lock.unlock();
+        latch.await();
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < WAITER_COUNT; i++) {
+            if (IMPATIENT != i) {
+                expected.add(i);
+            }
+        }
+        System.out.println("获取锁的顺序为：" + ORDER + "，是否与排队顺序一致：" + expected.equals(ORDER));
+
+        lock.destory();
+    }
+
+    static class Waiter implements Runnable {
+        private final CountDownLatch latch;
+        private final LettuceFairLock lock;
+        private final int index;
+
+        public Waiter(CountDownLatch latch, LettuceFairLock lock, int index) {
+            this.latch = latch;
+            this.lock = lock;
+            this.index = index;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (IMPATIENT == index) {
+                    if (lock.tryLock(1, TimeUnit.SECONDS)) {
+                        ORDER.add(index);
+                        lock.unlock();
+                    } else {
+                        System.out.println(Thread.currentThread().getName() + "等待超时，放弃等待");
+                    }
+                    return;
+                }
+                lock.lock();
+                ORDER.add(index);
+                System.out.println(Thread.currentThread().getName() + "获取到锁");
+                lock.unlock();
+            } finally {
+                latch.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package org.mallen.test.learning.dl.redis.lettuce.multi;
+
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.ScriptOutputType;
+import org.mallen.test.learning.dl.DistributedLock;
+import org.mallen.test.learning.dl.LockingException;
+import org.mallen.test.learning.dl.redis.lettuce.LockClient;
+import org.mallen.test.learning.dl.redis.lettuce.LockScript;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 同时锁定多个资源：所有key通过一次{@link LockScript#MULTI_ACQUIRE}脚本获取，要么全部获取成功，要么一个都不获取，
+ * 所有key使用相同的值和相同的过期时间，释放时也通过一次{@link LockScript#MULTI_RELEASE}脚本全部释放。
+ * 与逐个SET NX相比，只需要一次网络往返，也不会出现只持有部分锁、需要手动回滚的情况。
+ * 持有期间由看门狗续时，同一组的key总是在同一次检查中到期，所以在同一个批量续时脚本中续时；任意一个key丢失时，整组锁视为丢失。
+ * 集群模式下一个脚本只能访问同一个slot的key，所以按slot分组，每组一个脚本：组之间按slot顺序获取，后面的组获取失败时回滚前面已经获取的组。
+ * 需要原子地锁定的key可以使用相同的hash tag（例如"{order:1}:stock"、"{order:1}:coupon"），使它们落在同一个slot；单机模式下所有key为一组。
+ *
+ * @author mallen
+ * @date 6/13/20
+ */
+public class LettuceMultiLock implements DistributedLock {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LettuceMultiLock.class);
+    /**
+     * 过期时间：10s
+     */
+    private static final int EXPIRE = 10;
+    /**
+     * 自旋获取锁时，每次重试之间的睡眠时间：1ms
+     */
+    private static final long SPIN_INTERVAL = 1;
+    private final LockClient client;
+    /**
+     * 按固定顺序排列的key分组，每组通过一次脚本原子地获取/释放
+     */
+    private final List<String[]> groups;
+    private final String id;
+
+    public LettuceMultiLock(Collection<String> keys) {
+        this(RedisURI.builder()
+                .withHost("127.0.0.1")
+                .withPort(6379)
+                .withDatabase(1)
+                .build(), keys);
+    }
+
+    public LettuceMultiLock(RedisURI redisURI, Collection<String> keys) {
+        this(LockClient.standalone(redisURI), keys);
+    }
+
+    /**
+     * @param client 通过{@link LockClient#standalone(RedisURI)}或者{@link LockClient#cluster(java.util.List)}获取的客户端，获取时得到的引用交给锁管理，{@link #destory()}时释放
+     */
+    public LettuceMultiLock(LockClient client, Collection<String> keys) {
+        if (keys.isEmpty()) {
+            throw new IllegalArgumentException("keys不能为空");
+        }
+        this.client = client;
+        // 排序去重后按slot分组，所有客户端按相同的顺序获取各组
+        this.groups = new ArrayList<>();
+        for (List<String> group : client.groupBySlot(new TreeSet<>(keys))) {
+            groups.add(group.toArray(new String[0]));
+        }
+        this.id = UUID.randomUUID().toString();
+    }
+
+    @Override
+    public void lock() throws LockingException {
+        while (!tryLock()) {
+            // 未获取到锁，睡眠一段时间，然后再自旋获取锁
+            try {
+                TimeUnit.MILLISECONDS.sleep(SPIN_INTERVAL);
+            } catch (InterruptedException e) {
+                throw new LockingException("获取锁时出现InterruptedException", e);
+            }
+        }
+    }
+
+    @Override
+    public boolean tryLock() {
+        String locker = getLocker();
+        String leaseMillis = String.valueOf(TimeUnit.SECONDS.toMillis(EXPIRE));
+        List<String[]> acquired = new ArrayList<>(groups.size());
+        for (String[] group : groups) {
+            Long result = client.scripts().eval(LockScript.MULTI_ACQUIRE, ScriptOutputType.INTEGER, group, locker, leaseMillis);
+            if (1 != result) {
+                // 回滚已经获取的组
+                for (String[] rollback : acquired) {
+                    client.scripts().eval(LockScript.MULTI_RELEASE, ScriptOutputType.INTEGER, rollback, locker);
+                }
+                return false;
+            }
+            acquired.add(group);
+        }
+        for (String[] group : groups) {
+            for (String key : group) {
+                client.watchdog().watch(key, locker, EXPIRE, TimeUnit.SECONDS, this::onLockLost);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean tryLock(long timeout, TimeUnit unit) throws LockingException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!tryLock()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(SPIN_INTERVAL)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void unlock() throws LockingException {
+        String locker = getLocker();
+        long released = 0;
+        int total = 0;
+        for (String[] group : groups) {
+            for (String key : group) {
+                client.watchdog().unwatch(key, locker);
+            }
+            Long count = client.scripts().eval(LockScript.MULTI_RELEASE, ScriptOutputType.INTEGER, group, locker);
+            released += count;
+            total += group.length;
+        }
+        if (released != total) {
+            throw new LockingException("部分锁已经不属于当前线程，释放了" + released + "/" + total + "个锁");
+        }
+    }
+
+    @Override
+    public long getLeaseTime(TimeUnit unit) {
+        return unit.convert(EXPIRE, TimeUnit.SECONDS);
+    }
+
+    public void destory() {
+        client.release();
+    }
+
+    /**
+     * 组中任意一个锁丢失时，停止为其他锁续时，整组锁视为丢失
+     */
+    private void onLockLost(String lostKey, String locker) {
+        for (String[] group : groups) {
+            for (String key : group) {
+                client.watchdog().unwatch(key, locker);
+            }
+        }
+        LOGGER.warn("锁已丢失，key：{}，停止为同一组的其他锁续时", lostKey);
+    }
+
+    /**
+     * 锁的值，用于标识持有锁的线程，释放锁时只能释放自己持有的锁
+     */
+    private String getLocker() {
+        return id + ":" + Thread.currentThread().getId();
+    }
+}
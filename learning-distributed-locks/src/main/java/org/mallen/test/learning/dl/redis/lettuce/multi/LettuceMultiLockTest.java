@@ -0,0 +1,65 @@
+package org.mallen.test.learning.dl.redis.lettuce.multi;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 卖票时同时锁定票和座位两个资源，两个key通过一次脚本同时获取、同时释放
+ *
+ * @author mallen
+ * @date 6/13/20
+ */
+public class LettuceMultiLockTest {
+    private static Integer tickets = 100;
+    private static Integer seats = 100;
+    /**
+     * 收集已卖票信息，如果正常的话，set的size应该等于tickets
+     */
+    private static Set<Integer> soldTickets = new HashSet(100, 1);
+
+    public static void main(String[] args) throws InterruptedException {
+        LettuceMultiLock lock = new LettuceMultiLock(Arrays.asList("tickets_lock", "seats_lock"));
+        int sellerCount = 3;
+        CountDownLatch latch = new CountDownLatch(sellerCount);
+        for (int i = 0; i < sellerCount; i++) {
+            Thread thread = new Thread(new Seller(latch, lock));
+            thread.setName("thread" + (i + 1));
+            thread.start();
+        }
+        latch.await();
+        // 打印卖出的票的数量，如果与tickets的数量不一样，说明存在多线程资源竞争的问题。剩余座位数应该为0
+        System.out.println("已卖票数量为：" + soldTickets.size() + "，剩余座位数为：" + seats);
+
+        lock.destory();
+    }
+
+    static class Seller implements Runnable {
+        private final CountDownLatch latch;
+        private final LettuceMultiLock lock;
+
+        public Seller(CountDownLatch latch, LettuceMultiLock lock) {
+            this.latch = latch;
+            this.lock = lock;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                lock.lock();
+                if (tickets > 0) {
+                    soldTickets.add(tickets);
+                    System.out.println(Thread.currentThread().getName() + "卖出票：" + tickets + "，座位：" + seats);
+                    tickets--;
+                    seats--;
+                    lock.unlock();
+                } else {
+                    lock.unlock();
+                    break;
+                }
+            }
+            latch.countDown();
+        }
+    }
+}
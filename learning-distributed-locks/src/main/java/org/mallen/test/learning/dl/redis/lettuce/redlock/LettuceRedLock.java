@@ -0,0 +1,330 @@
+package org.mallen.test.learning.dl.redis.lettuce.redlock;
+
+import io.lettuce.core.ClientOptions;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.SetArgs;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.resource.ClientResources;
+import io.lettuce.core.resource.DefaultClientResources;
+import org.mallen.test.learning.dl.DistributedLock;
+import org.mallen.test.learning.dl.LockingException;
+import org.mallen.test.learning.dl.redis.lettuce.LockScript;
+import org.mallen.test.learning.dl.redis.lettuce.ScriptRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * Redlock：在N个相互独立的Redis节点上获取同一个锁，超过半数节点获取成功、并且锁的剩余有效时间大于0时，才认为获取成功。
+ * 加锁请求通过异步连接同时发送给所有节点，获取锁的耗时接近各节点延迟的中位数，而不是所有节点延迟之和；
+ * 单个节点挂掉（或者响应超时）不影响锁的可用性：各节点异步建立连接，构造锁时不需要所有节点都可用，连接失败的节点视为加锁失败，之后发送命令时重新连接。
+ * 锁的有效时间 = 租约时间 - 获取锁的耗时 - 时钟漂移（租约时间的1% + 2ms），获取成功后通过{@link #getValidity(TimeUnit)}查询剩余的有效时间，
+ * 临界区需要在有效时间内完成；获取失败时在所有节点上释放锁。
+ * 没有指定ClientResources时，所有实例共享同一组IO线程和定时器，而不是每个锁各自创建。
+ * 参考：https://redis.io/topics/distlock
+ *
+ * @author mallen
+ * @date 6/14/20
+ */
+public class LettuceRedLock implements DistributedLock {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LettuceRedLock.class);
+    /**
+     * 过期时间：10s
+     */
+    private static final int EXPIRE = 10;
+    /**
+     * 时钟漂移系数：租约时间的1%
+     */
+    private static final double CLOCK_DRIFT_FACTOR = 0.01;
+    /**
+     * 等待单个节点响应的最长时间：50ms，远小于租约时间，避免在挂掉的节点上等待太久
+     */
+    private static final long NODE_TIMEOUT = 50;
+    /**
+     * 节点连接失败后，至少间隔该时间才重新连接：1s
+     */
+    private static final long RECONNECT_INTERVAL = 1000;
+    /**
+     * 获取失败后重试前的最长随机等待时间：20ms，随机等待可以避免多个客户端同时重试，导致谁都获取不到多数节点
+     */
+    private static final long MAX_RETRY_DELAY = 20;
+    /**
+     * 没有指定ClientResources的实例共享的IO线程和定时器，最后一个使用者{@link #destory()}时关闭；需要持有LettuceRedLock.class的锁才能访问
+     */
+    private static ClientResources sharedResources;
+    private static int sharedReferences = 0;
+    private final ClientResources resources;
+    /**
+     * resources是否为共享的{@link #sharedResources}
+     */
+    private final boolean shared;
+    private final List<Node> nodes;
+    private final int quorum;
+    private final String lockKey;
+    private final String id;
+    /**
+     * 当前线程持有的锁的有效期截止时间（System.nanoTime()）
+     */
+    private final ThreadLocal<Long> validUntil = new ThreadLocal<>();
+
+    /**
+     * @param redisURIs 相互独立的Redis节点（不是主从或者集群），一般为奇数个
+     * @param lockKey   锁对应的key
+     */
+    public LettuceRedLock(List<RedisURI> redisURIs, String lockKey) {
+        this(null, redisURIs, lockKey);
+    }
+
+    /**
+     * @param resources 所有节点使用的IO线程和定时器，可以被多个锁共享，由调用者负责关闭；为null时使用所有实例共享的默认值
+     * @param redisURIs 相互独立的Redis节点（不是主从或者集群），一般为奇数个
+     * @param lockKey   锁对应的key
+     */
+    public LettuceRedLock(ClientResources resources, List<RedisURI> redisURIs, String lockKey) {
+        if (redisURIs.isEmpty()) {
+            throw new IllegalArgumentException("redisURIs不能为空");
+        }
+        this.shared = null == resources;
+        this.resources = shared ? acquireSharedResources() : resources;
+        this.nodes = new ArrayList<>(redisURIs.size());
+        for (RedisURI redisURI : redisURIs) {
+            nodes.add(new Node(this.resources, redisURI));
+        }
+        this.quorum = redisURIs.size() / 2 + 1;
+        this.lockKey = lockKey;
+        this.id = UUID.randomUUID().toString();
+    }
+
+    @Override
+    public void lock() throws LockingException {
+        while (!tryLock()) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(ThreadLocalRandom.current().nextLong(1, MAX_RETRY_DELAY + 1));
+            } catch (InterruptedException e) {
+                throw new LockingException("获取锁时出现InterruptedException", e);
+            }
+        }
+    }
+
+    @Override
+    public boolean tryLock() {
+        String locker = getLocker();
+        long leaseMillis = TimeUnit.SECONDS.toMillis(EXPIRE);
+        SetArgs args = SetArgs.Builder.nx().px(leaseMillis);
+        long start = System.nanoTime();
+        List<CompletableFuture<String>> results = new ArrayList<>(nodes.size());
+        for (Node node : nodes) {
+            // 同时向所有节点发送加锁请求
+            results.add(node.send(session -> session.connection.async().set(lockKey, locker, args)));
+        }
+        int acquired = 0;
+        long timeout = start + TimeUnit.MILLISECONDS.toNanos(NODE_TIMEOUT);
+        for (CompletableFuture<String> result : results) {
+            if ("OK".equals(await(result, timeout))) {
+                acquired++;
+            }
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        long drift = (long) (leaseMillis * CLOCK_DRIFT_FACTOR) + 2;
+        long validity = leaseMillis - elapsed - drift;
+        if (acquired >= quorum && validity > 0) {
+            validUntil.set(start + TimeUnit.MILLISECONDS.toNanos(leaseMillis - drift));
+            return true;
+        }
+        // 没有获取到多数节点，或者获取耗时太长：在所有节点上释放（包括没有响应的节点，它们可能已经设置成功了）
+        release(locker);
+        return false;
+    }
+
+    @Override
+    public boolean tryLock(long timeout, TimeUnit unit) throws LockingException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!tryLock()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                long delay = TimeUnit.MILLISECONDS.toNanos(ThreadLocalRandom.current().nextLong(1, MAX_RETRY_DELAY + 1));
+                TimeUnit.NANOSECONDS.sleep(Math.min(remaining, delay));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void unlock() throws LockingException {
+        validUntil.remove();
+        if (release(getLocker()) < quorum) {
+            LOGGER.warn("只在少数节点上释放了锁，锁可能已经过期：{}", lockKey);
+        }
+    }
+
+    /**
+     * 各节点上的锁独立过期，获取成功时剩余的有效时间小于该值，见{@link #getValidity(TimeUnit)}
+     */
+    @Override
+    public long getLeaseTime(TimeUnit unit) {
+        return unit.convert(EXPIRE, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 当前线程持有的锁剩余的有效时间：租约时间减去获取锁的耗时和时钟漂移，再减去获取成功后经过的时间。
+     * 超过该时间后，多数节点上的锁可能已经过期，其他客户端可以获取锁
+     *
+     * @return 当前线程没有持有锁或者已经超过有效时间时返回0
+     */
+    public long getValidity(TimeUnit unit) {
+        Long deadline = validUntil.get();
+        if (null == deadline) {
+            return 0;
+        }
+        return unit.convert(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    public void destory() {
+        for (Node node : nodes) {
+            node.close();
+        }
+        if (shared) {
+            releaseSharedResources();
+        }
+    }
+
+    private static synchronized ClientResources acquireSharedResources() {
+        if (0 == sharedReferences++) {
+            sharedResources = DefaultClientResources.create();
+        }
+        return sharedResources;
+    }
+
+    private static synchronized void releaseSharedResources() {
+        if (0 == --sharedReferences) {
+            sharedResources.shutdown();
+            sharedResources = null;
+        }
+    }
+
+    /**
+     * 同时在所有节点上释放锁
+     *
+     * @return 释放成功的节点数量
+     */
+    private int release(String locker) {
+        List<CompletableFuture<Long>> results = new ArrayList<>(nodes.size());
+        for (Node node : nodes) {
+            results.add(node.send(session -> session.scripts.evalAsync(LockScript.RELEASE, ScriptOutputType.INTEGER, new String[]{lockKey}, locker)));
+        }
+        int released = 0;
+        long timeout = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(NODE_TIMEOUT);
+        for (CompletableFuture<Long> result : results) {
+            Long count = await(result, timeout);
+            if (null != count && 1 == count) {
+                released++;
+            }
+        }
+        return released;
+    }
+
+    /**
+     * 等待节点响应，超时或者出错时返回null
+     *
+     * @param deadline 截止时间（System.nanoTime()）
+     */
+    private static <T> T await(CompletableFuture<T> result, long deadline) {
+        try {
+            return result.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 锁的值，用于标识持有锁的线程，释放锁时只能释放自己持有的锁
+     */
+    private String getLocker() {
+        return id + ":" + Thread.currentThread().getId();
+    }
+
+    private static class Node {
+        private final RedisClient redisClient;
+        private final RedisURI redisURI;
+        /**
+         * 正在建立或者已经建立的连接，连接失败后由{@link #session()}重新连接
+         */
+        private CompletableFuture<Session> session;
+        private long connectAt;
+
+        Node(ClientResources resources, RedisURI redisURI) {
+            this.redisClient = RedisClient.create(resources, redisURI);
+            // 节点断开时直接拒绝命令，而不是缓存到重连后再发送，避免重连后设置了已经没人关心的锁
+            this.redisClient.setOptions(ClientOptions.builder()
+                    .disconnectedBehavior(ClientOptions.DisconnectedBehavior.REJECT_COMMANDS)
+                    .build());
+            this.redisURI = redisURI;
+            this.session = connect();
+        }
+
+        /**
+         * 连接建立后发送命令；连接失败、节点断开时lettuce直接抛出的异常都转换为失败的结果
+         */
+        <T> CompletableFuture<T> send(Function<Session, CompletionStage<T>> command) {
+            return session().thenCompose(command);
+        }
+
+        void close() {
+            CompletableFuture<Session> current = session();
+            if (current.isDone() && !current.isCompletedExceptionally()) {
+                current.join().connection.close();
+            }
+            redisClient.shutdown();
+        }
+
+        private synchronized CompletableFuture<Session> session() {
+            if (session.isCompletedExceptionally() && System.currentTimeMillis() - connectAt >= RECONNECT_INTERVAL) {
+                session = connect();
+            }
+            return session;
+        }
+
+        private CompletableFuture<Session> connect() {
+            connectAt = System.currentTimeMillis();
+            return redisClient.connectAsync(StringCodec.UTF8, redisURI).toCompletableFuture()
+                    .thenApply(Session::new)
+                    .whenComplete((s, e) -> {
+                        if (null != e) {
+                            LOGGER.warn("连接Redis节点{}失败", redisURI, e);
+                        }
+                    });
+        }
+    }
+
+    private static class Session {
+        private final StatefulRedisConnection<String, String> connection;
+        private final ScriptRegistry scripts;
+
+        Session(StatefulRedisConnection<String, String> connection) {
+            this.connection = connection;
+            this.scripts = new ScriptRegistry(connection);
+        }
+    }
+}
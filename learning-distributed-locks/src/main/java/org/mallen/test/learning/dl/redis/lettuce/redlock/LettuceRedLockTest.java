@@ -0,0 +1,100 @@
+package org.mallen.test.learning.dl.redis.lettuce.redlock;
+
+import io.lettuce.core.RedisURI;
+import org.mallen.test.learning.dl.redis.stub.LockScriptStubs;
+import org.mallen.test.learning.dl.redis.stub.RedisStubServer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在5个进程内的Redis桩服务上运行Redlock，卖出一半票后关闭其中一个节点，剩余4个节点仍然满足多数派，卖票不受影响
+ *
+ * @author mallen
+ * @date 6/14/20
+ */
+public class LettuceRedLockTest {
+    private static Integer tickets = 100;
+    /**
+     * 收集已卖票信息，如果正常的话，set的size应该等于tickets
+     */
+    private static Set<Integer> soldTickets = new HashSet(100, 1);
+    private static final String LOCK_KEY = "tickets_lock";
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        int nodeCount = 5;
+        List<RedisStubServer> servers = new ArrayList<>(nodeCount);
+        List<RedisURI> redisURIs = new ArrayList<>(nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            RedisStubServer server = new RedisStubServer();
+            LockScriptStubs.register(server);
+            servers.add(server);
+            redisURIs.add(RedisURI.create("127.0.0.1", server.getPort()));
+        }
+        LettuceRedLock lock = new LettuceRedLock(redisURIs, LOCK_KEY);
+        int sellerCount = 3;
+        CountDownLatch latch = new CountDownLatch(sellerCount);
+        for (int i = 0; i < sellerCount; i++) {
+            Thread thread = new Thread(new Seller(latch, lock, servers.get(0)));
+            thread.setName("thread" + (i + 1));
+            thread.start();
+        }
+        latch.await();
+        // 打印卖出的票的数量，如果与tickets的数量不一样，说明存在多线程资源竞争的问题。
+        System.out.println("已卖票数量为：" + soldTickets.size());
+
+        lock.destory();
+        for (RedisStubServer server : servers) {
+            server.close();
+        }
+    }
+
+    static class Seller implements Runnable {
+        private final CountDownLatch latch;
+        private final LettuceRedLock lock;
+        /**
+         * 卖出一半票后关闭的节点
+         */
+        private final RedisStubServer failingNode;
+
+        public Seller(CountDownLatch latch, LettuceRedLock lock, RedisStubServer failingNode) {
+            this.latch = latch;
+            this.lock = lock;
+            this.failingNode = failingNode;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                lock.lock();
+                if (tickets > 0) {
+                    soldTickets.add(tickets);
+                    System.out.println(Thread.currentThread().getName() + "卖出票：" + tickets + "，锁的剩余有效时间：" + lock.getValidity(TimeUnit.MILLISECONDS) + "ms");
+                    tickets--;
+                    if (tickets == 50) {
+                        closeNode();
+                    }
+                    lock.unlock();
+                } else {
+                    lock.unlock();
+                    break;
+                }
+            }
+            latch.countDown();
+        }
+
+        private void closeNode() {
+            try {
+                failingNode.close();
+                System.out.println("关闭了一个Redis节点");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
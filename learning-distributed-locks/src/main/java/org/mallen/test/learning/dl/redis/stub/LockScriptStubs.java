@@ -0,0 +1,125 @@
+package org.mallen.test.learning.dl.redis.stub;
+
+import org.mallen.test.learning.dl.redis.lettuce.LockScript;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link LockScript}中各个lua脚本在{@link RedisStubServer}上的java实现
+ *
+ * @author mallen
+ * @date 6/4/20
+ */
+public class LockScriptStubs {
+    public static void register(RedisStubServer server) {
+        server.registerScript(LockScript.RELEASE.getLua(), (redis, keys, args) ->
+                args.get(0).equals(redis.get(keys.get(0))) && redis.del(keys.get(0)) ? 1L : 0L);
+        server.registerScript(LockScript.RENEW.getLua(), (redis, keys, args) ->
+                args.get(0).equals(redis.get(keys.get(0))) && redis.pexpire(keys.get(0), Long.parseLong(args.get(1))) ? 1L : 0L);
+        server.registerScript(LockScript.ACQUIRE.getLua(), (redis, keys, args) -> {
+            String value = redis.get(keys.get(0));
+            if (null == value) {
+                redis.set(keys.get(0), args.get(0), Long.parseLong(args.get(1)));
+                return 1L;
+            } else if (value.equals(args.get(0))) {
+                redis.pexpire(keys.get(0), Long.parseLong(args.get(1)));
+                return 1L;
+            }
+            return 0L;
+        });
+        server.registerScript(LockScript.RENEW_BATCH.getLua(), (redis, keys, args) -> {
+            List<Long> result = new ArrayList<>(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                boolean owned = args.get(i * 2).equals(redis.get(keys.get(i)));
+                result.add(owned && redis.pexpire(keys.get(i), Long.parseLong(args.get(i * 2 + 1))) ? 1L : 0L);
+            }
+            return result;
+        });
+        server.registerScript(LockScript.MULTI_ACQUIRE.getLua(), (redis, keys, args) -> {
+            for (String key : keys) {
+                String value = redis.get(key);
+                if (null != value && !value.equals(args.get(0))) {
+                    return 0L;
+                }
+            }
+            for (String key : keys) {
+                redis.set(key, args.get(0), Long.parseLong(args.get(1)));
+            }
+            return 1L;
+        });
+        server.registerScript(LockScript.MULTI_RELEASE.getLua(), (redis, keys, args) -> {
+            long count = 0;
+            for (String key : keys) {
+                if (args.get(0).equals(redis.get(key)) && redis.del(key)) {
+                    count++;
+                }
+            }
+            return count;
+        });
+        registerFair(server);
+    }
+
+    /**
+     * 公平锁脚本：等待队列（list + zset）使用一个按插入顺序排列的Map代替，key为等待者，value为等待者的超时时间
+     */
+    private static void registerFair(RedisStubServer server) {
+        // 脚本都在RedisStubServer的锁内执行，不需要额外同步
+        Map<String, LinkedHashMap<String, Long>> queues = new HashMap<>();
+        server.registerScript(LockScript.FAIR_ACQUIRE.getLua(), (redis, keys, args) -> {
+            LinkedHashMap<String, Long> queue = queues.computeIfAbsent(keys.get(1), k -> new LinkedHashMap<>());
+            String value = args.get(0);
+            long leaseMillis = Long.parseLong(args.get(1));
+            long now = Long.parseLong(args.get(3));
+            Iterator<Long> deadlines = queue.values().iterator();
+            while (deadlines.hasNext() && deadlines.next() < now) {
+                deadlines.remove();
+            }
+            String owner = redis.get(keys.get(0));
+            if (value.equals(owner)) {
+                redis.pexpire(keys.get(0), leaseMillis);
+                return 1L;
+            }
+            String head = queue.isEmpty() ? null : queue.keySet().iterator().next();
+            if (null == owner && (null == head || head.equals(value))) {
+                queue.remove(value);
+                redis.set(keys.get(0), value, leaseMillis);
+                return 1L;
+            }
+            if ("1".equals(args.get(4))) {
+                queue.put(value, now + Long.parseLong(args.get(2)));
+            }
+            return 0L;
+        });
+        server.registerScript(LockScript.FAIR_RELEASE.getLua(), (redis, keys, args) -> {
+            if (!args.get(0).equals(redis.get(keys.get(0)))) {
+                return 0L;
+            }
+            LinkedHashMap<String, Long> queue = queues.computeIfAbsent(keys.get(1), k -> new LinkedHashMap<>());
+            long now = Long.parseLong(args.get(2));
+            Iterator<Map.Entry<String, Long>> waiters = queue.entrySet().iterator();
+            while (waiters.hasNext()) {
+                Map.Entry<String, Long> head = waiters.next();
+                waiters.remove();
+                if (head.getValue() >= now) {
+                    redis.set(keys.get(0), head.getKey(), Long.parseLong(args.get(1)));
+                    redis.publish(args.get(3), head.getKey());
+                    return 2L;
+                }
+            }
+            redis.del(keys.get(0));
+            return 1L;
+        });
+        server.registerScript(LockScript.FAIR_CANCEL.getLua(), (redis, keys, args) -> {
+            LinkedHashMap<String, Long> queue = queues.get(keys.get(1));
+            if (null != queue) {
+                queue.remove(args.get(0));
+            }
+            return args.get(0).equals(redis.get(keys.get(0))) ? 1L : 0L;
+        });
+    }
+}
@@ -0,0 +1,477 @@
+package org.mallen.test.learning.dl.redis.stub;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 进程内的Redis协议(RESP)桩服务，用于在没有Redis服务的环境下运行基准测试和示例。
+ * 只实现了分布式锁需要用到的命令：PING、SELECT、CLIENT、SET(NX/XX/EX/PX)、GET、DEL、EXISTS、PEXPIRE、PTTL、EVAL、EVALSHA、SCRIPT、PUBLISH、SUBSCRIBE、UNSUBSCRIBE。
+ * 由于不能执行lua脚本，所以需要通过{@link #registerScript(String, ScriptHandler)}为每个脚本注册一个java实现，
+ * 所有命令（包括脚本）都是串行执行的，与Redis的单线程模型一致。
+ *
+ * @author mallen
+ * @date 6/2/20
+ */
+public class RedisStubServer implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RedisStubServer.class);
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "redis-stub");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+    private final Map<String, Entry> store = new HashMap<>();
+    /**
+     * 注册的脚本实现，key为脚本的sha1
+     */
+    private final Map<String, ScriptHandler> scripts = new ConcurrentHashMap<>();
+    /**
+     * 已经加载（SCRIPT LOAD或者EVAL过）的脚本sha1，只有加载过的脚本才能使用EVALSHA执行
+     */
+    private final Set<String> loadedScripts = new HashSet<>();
+    /**
+     * 每个频道的订阅者
+     */
+    private final Map<String, Set<Client>> subscribers = new HashMap<>();
+    private volatile boolean running = true;
+
+    public RedisStubServer() throws IOException {
+        this(0);
+    }
+
+    public RedisStubServer(int port) throws IOException {
+        this.serverSocket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+        executor.execute(this::accept);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * 为lua脚本注册一个java实现
+     *
+     * @param lua     脚本内容
+     * @param handler 脚本的java实现
+     */
+    public void registerScript(String lua, ScriptHandler handler) {
+        scripts.put(sha1Hex(lua), handler);
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+        for (Socket client : clients) {
+            client.close();
+        }
+        executor.shutdownNow();
+    }
+
+    // ---------------------------- 供脚本实现使用的数据操作，调用时已经持有锁 ----------------------------
+
+    public synchronized String get(String key) {
+        Entry entry = store.get(key);
+        if (null == entry) {
+            return null;
+        }
+        if (entry.expireAt > 0 && entry.expireAt <= System.currentTimeMillis()) {
+            store.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * @param ttlMillis 过期时间，小于等于0表示永不过期
+     */
+    public synchronized void set(String key, String value, long ttlMillis) {
+        store.put(key, new Entry(value, ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0));
+    }
+
+    public synchronized boolean del(String key) {
+        return null != get(key) && null != store.remove(key);
+    }
+
+    public synchronized boolean pexpire(String key, long ttlMillis) {
+        if (null == get(key)) {
+            return false;
+        }
+        store.get(key).expireAt = System.currentTimeMillis() + ttlMillis;
+        return true;
+    }
+
+    public synchronized long pttl(String key) {
+        if (null == get(key)) {
+            return -2;
+        }
+        Entry entry = store.get(key);
+        return entry.expireAt > 0 ? entry.expireAt - System.currentTimeMillis() : -1;
+    }
+
+    public synchronized long publish(String channel, String message) {
+        Set<Client> clients = subscribers.getOrDefault(channel, Collections.emptySet());
+        for (Client client : clients) {
+            synchronized (client) {
+                try {
+                    writeReply(client.out, Arrays.asList("message", channel, message));
+                    client.out.flush();
+                } catch (IOException e) {
+                    LOGGER.warn("发送订阅消息失败", e);
+                }
+            }
+        }
+        return clients.size();
+    }
+
+    // ---------------------------- 网络处理 ----------------------------
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                clients.add(socket);
+                executor.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (running) {
+                    LOGGER.warn("接收连接失败", e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (InputStream in = new BufferedInputStream(socket.getInputStream());
+             OutputStream out = new BufferedOutputStream(socket.getOutputStream())) {
+            Client client = new Client(out);
+            List<String> command;
+            try {
+                while (null != (command = readCommand(in))) {
+                    Object reply = execute(client, command);
+                    synchronized (client) {
+                        writeReply(out, reply);
+                        // 请求流水线化时，处理完当前缓冲区中的所有命令后再刷新
+                        if (in.available() == 0) {
+                            out.flush();
+                        }
+                    }
+                }
+            } finally {
+                unsubscribeAll(client);
+            }
+        } catch (SocketException e) {
+            // 连接关闭
+        } catch (IOException e) {
+            if (running) {
+                LOGGER.warn("处理连接失败", e);
+            }
+        } finally {
+            clients.remove(socket);
+        }
+    }
+
+    private synchronized Object execute(Client client, List<String> command) {
+        String name = command.get(0).toUpperCase(Locale.ROOT);
+        try {
+            switch (name) {
+                case "PING":
+                    return new StatusReply("PONG");
+                case "SELECT":
+                case "CLIENT":
+                    return StatusReply.OK;
+                case "SET":
+                    return set(command);
+                case "GET":
+                    return get(command.get(1));
+                case "DEL":
+                    long deleted = 0;
+                    for (String key : command.subList(1, command.size())) {
+                        deleted += del(key) ? 1 : 0;
+                    }
+                    return deleted;
+                case "EXISTS":
+                    return null == get(command.get(1)) ? 0L : 1L;
+                case "PEXPIRE":
+                    return pexpire(command.get(1), Long.parseLong(command.get(2))) ? 1L : 0L;
+                case "PTTL":
+                    return pttl(command.get(1));
+                case "EVAL":
+                    String sha = sha1Hex(command.get(1));
+                    loadedScripts.add(sha);
+                    return eval(sha, command);
+                case "EVALSHA":
+                    if (!loadedScripts.contains(command.get(1).toLowerCase(Locale.ROOT))) {
+                        return new ErrorReply("NOSCRIPT No matching script. Please use EVAL.");
+                    }
+                    return eval(command.get(1).toLowerCase(Locale.ROOT), command);
+                case "SCRIPT":
+                    return script(command);
+                case "PUBLISH":
+                    return publish(command.get(1), command.get(2));
+                case "SUBSCRIBE":
+                    return subscribe(client, command.subList(1, command.size()));
+                case "UNSUBSCRIBE":
+                    return unsubscribe(client, command.subList(1, command.size()));
+                default:
+                    return new ErrorReply("ERR unknown command '" + command.get(0) + "'");
+            }
+        } catch (RuntimeException e) {
+            return new ErrorReply("ERR " + e.getMessage());
+        }
+    }
+
+    private Object set(List<String> command) {
+        String key = command.get(1);
+        boolean nx = false;
+        boolean xx = false;
+        long ttlMillis = 0;
+        for (int i = 3; i < command.size(); i++) {
+            String option = command.get(i).toUpperCase(Locale.ROOT);
+            if ("NX".equals(option)) {
+                nx = true;
+            } else if ("XX".equals(option)) {
+                xx = true;
+            } else if ("EX".equals(option)) {
+                ttlMillis = Long.parseLong(command.get(++i)) * 1000;
+            } else if ("PX".equals(option)) {
+                ttlMillis = Long.parseLong(command.get(++i));
+            } else {
+                return new ErrorReply("ERR syntax error");
+            }
+        }
+        boolean exists = null != get(key);
+        if ((nx && exists) || (xx && !exists)) {
+            return null;
+        }
+        set(key, command.get(2), ttlMillis);
+        return StatusReply.OK;
+    }
+
+    private Object eval(String sha, List<String> command) {
+        ScriptHandler handler = scripts.get(sha);
+        if (null == handler) {
+            return new ErrorReply("ERR script " + sha + " is not supported by stub server");
+        }
+        int numKeys = Integer.parseInt(command.get(2));
+        List<String> keys = command.subList(3, 3 + numKeys);
+        List<String> args = command.subList(3 + numKeys, command.size());
+        return handler.eval(this, keys, args);
+    }
+
+    private Object script(List<String> command) {
+        String sub = command.get(1).toUpperCase(Locale.ROOT);
+        if ("LOAD".equals(sub)) {
+            String sha = sha1Hex(command.get(2));
+            if (!scripts.containsKey(sha)) {
+                return new ErrorReply("ERR script " + sha + " is not supported by stub server");
+            }
+            loadedScripts.add(sha);
+            return sha;
+        } else if ("FLUSH".equals(sub)) {
+            loadedScripts.clear();
+            return StatusReply.OK;
+        } else if ("EXISTS".equals(sub)) {
+            List<Object> result = new ArrayList<>();
+            for (String sha : command.subList(2, command.size())) {
+                result.add(loadedScripts.contains(sha.toLowerCase(Locale.ROOT)) ? 1L : 0L);
+            }
+            return result;
+        }
+        return new ErrorReply("ERR unknown subcommand '" + command.get(1) + "'");
+    }
+
+    public static String sha1Hex(String lua) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(lua.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Object subscribe(Client client, List<String> channels) {
+        List<Object> replies = new ArrayList<>();
+        for (String channel : channels) {
+            subscribers.computeIfAbsent(channel, k -> new HashSet<>()).add(client);
+            client.channels.add(channel);
+            replies.add(Arrays.asList("subscribe", channel, (long) client.channels.size()));
+        }
+        return new Replies(replies);
+    }
+
+    private Object unsubscribe(Client client, List<String> channels) {
+        List<Object> replies = new ArrayList<>();
+        for (String channel : channels.isEmpty() ? new ArrayList<>(client.channels) : channels) {
+            Set<Client> clients = subscribers.get(channel);
+            if (null != clients && clients.remove(client) && clients.isEmpty()) {
+                subscribers.remove(channel);
+            }
+            client.channels.remove(channel);
+            replies.add(Arrays.asList("unsubscribe", channel, (long) client.channels.size()));
+        }
+        return new Replies(replies);
+    }
+
+    private synchronized void unsubscribeAll(Client client) {
+        unsubscribe(client, Collections.emptyList());
+    }
+
+    private static List<String> readCommand(InputStream in) throws IOException {
+        String header = readLine(in);
+        if (null == header) {
+            return null;
+        }
+        if (header.charAt(0) != '*') {
+            // inline命令
+            return Arrays.asList(header.trim().split("\\s+"));
+        }
+        int count = Integer.parseInt(header.substring(1));
+        List<String> command = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String lengthLine = readLine(in);
+            if (null == lengthLine || lengthLine.charAt(0) != '$') {
+                throw new IOException("协议错误：" + lengthLine);
+            }
+            int length = Integer.parseInt(lengthLine.substring(1));
+            byte[] bytes = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int n = in.read(bytes, read, length - read);
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                read += n;
+            }
+            // 跳过\r\n
+            in.read();
+            in.read();
+            command.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return command;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\r') {
+                in.read();
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    private static void writeReply(OutputStream out, Object reply) throws IOException {
+        if (null == reply) {
+            out.write("$-1\r\n".getBytes(StandardCharsets.UTF_8));
+        } else if (reply instanceof StatusReply) {
+            out.write(("+" + ((StatusReply) reply).message + "\r\n").getBytes(StandardCharsets.UTF_8));
+        } else if (reply instanceof ErrorReply) {
+            out.write(("-" + ((ErrorReply) reply).message + "\r\n").getBytes(StandardCharsets.UTF_8));
+        } else if (reply instanceof Long || reply instanceof Integer) {
+            out.write((":" + reply + "\r\n").getBytes(StandardCharsets.UTF_8));
+        } else if (reply instanceof Boolean) {
+            // 与lua的转换规则一致：true转换为1，false转换为nil
+            writeReply(out, (Boolean) reply ? 1L : null);
+        } else if (reply instanceof Replies) {
+            for (Object item : ((Replies) reply).replies) {
+                writeReply(out, item);
+            }
+        } else if (reply instanceof List) {
+            List<?> list = (List<?>) reply;
+            out.write(("*" + list.size() + "\r\n").getBytes(StandardCharsets.UTF_8));
+            for (Object item : list) {
+                writeReply(out, item);
+            }
+        } else {
+            byte[] bytes = reply.toString().getBytes(StandardCharsets.UTF_8);
+            out.write(("$" + bytes.length + "\r\n").getBytes(StandardCharsets.UTF_8));
+            out.write(bytes);
+            out.write("\r\n".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * lua脚本的java实现
+     */
+    @FunctionalInterface
+    public interface ScriptHandler {
+        /**
+         * 执行脚本，返回值的转换规则：null为nil，Long为integer，String为bulk string，List为array，{@link StatusReply}为status，{@link ErrorReply}为error
+         *
+         * @param redis 桩服务，可以使用其get/set/del等方法操作数据
+         * @param keys  KEYS
+         * @param args  ARGV
+         * @return 脚本返回值
+         */
+        Object eval(RedisStubServer redis, List<String> keys, List<String> args);
+    }
+
+    public static class StatusReply {
+        public static final StatusReply OK = new StatusReply("OK");
+        private final String message;
+
+        public StatusReply(String message) {
+            this.message = message;
+        }
+    }
+
+    public static class ErrorReply {
+        private final String message;
+
+        public ErrorReply(String message) {
+            this.message = message;
+        }
+    }
+
+    /**
+     * 一个命令对应多个回复，例如订阅多个频道
+     */
+    private static class Replies {
+        private final List<Object> replies;
+
+        Replies(List<Object> replies) {
+            this.replies = replies;
+        }
+    }
+
+    private static class Client {
+        private final OutputStream out;
+        private final Set<String> channels = new HashSet<>();
+
+        Client(OutputStream out) {
+            this.out = out;
+        }
+    }
+
+    private static class Entry {
+        private final String value;
+        private long expireAt;
+
+        Entry(String value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+}
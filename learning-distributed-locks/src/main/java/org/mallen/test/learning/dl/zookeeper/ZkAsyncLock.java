@@ -0,0 +1,239 @@
+package org.mallen.test.learning.dl.zookeeper;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.mallen.test.learning.dl.LockingException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 完全异步的zookeeper（公平）锁：每次获取锁是一个由zookeeper异步回调驱动的状态机
+ * （创建临时顺序节点 -> 获取子节点找到前一个节点 -> 监听前一个节点 -> 前一个节点删除后重新检查），
+ * 等待期间不占用任何线程，也没有同步块和递归，一个连接的事件线程就可以驱动成千上万个等待中的获取请求。
+ * 获取锁的结果为代表本次持有的节点路径，释放锁时需要传给{@link #releaseAsync(String)}，所以同一个对象可以被任意多个请求共享。
+ * 注意：所有回调（包括返回的CompletableFuture的后续操作）都在zookeeper的事件线程中执行，不能在其中阻塞。
+ *
+ * @author mallen
+ * @date 6/14/20
+ */
+public class ZkAsyncLock {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ZkAsyncLock.class);
+    /**
+     * 与{@link ZkFairLock}使用相同的节点前缀，两种锁可以在同一个路径上互斥
+     */
+    private static final String MEMBER_PREFIX = ZkFairLock.MEMBER_PREFIX;
+    /**
+     * 获取锁超时的定时器，所有实例共享
+     */
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "ZkAsyncLock-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    private final ZooKeeper zkClient;
+    private final String lockPath;
+    private final List<ACL> acl;
+
+    public ZkAsyncLock(ZooKeeper zkClient, String lockPath) {
+        this(zkClient, lockPath, ZooDefs.Ids.OPEN_ACL_UNSAFE);
+    }
+
+    public ZkAsyncLock(ZooKeeper zkClient, String lockPath, List<ACL> acl) {
+        this.zkClient = zkClient;
+        this.lockPath = lockPath;
+        this.acl = Collections.unmodifiableList(acl);
+    }
+
+    /**
+     * 异步获取锁，直到获取成功
+     *
+     * @return 获取成功时完成为本次持有的节点路径；取消返回的CompletableFuture会放弃获取并删除节点
+     */
+    public CompletableFuture<String> lockAsync() {
+        Attempt attempt = new Attempt();
+        attempt.create();
+        return attempt.result;
+    }
+
+    /**
+     * 异步获取锁，最多等待timeout时间
+     *
+     * @return 在等待时间内获取成功时完成为本次持有的节点路径，超时完成为null（节点会被删除）
+     */
+    public CompletableFuture<String> lockAsync(long timeout, TimeUnit unit) {
+        Attempt attempt = new Attempt();
+        ScheduledFuture<?> timer = TIMER.schedule(() -> attempt.result.complete(null), timeout, unit);
+        attempt.result.whenComplete((node, e) -> timer.cancel(false));
+        attempt.create();
+        return attempt.result;
+    }
+
+    /**
+     * 异步释放锁
+     *
+     * @param node 获取锁时得到的节点路径
+     * @return 删除节点后完成为true；节点已经不存在（例如会话已经失效）时完成为false
+     */
+    public CompletionStage<Boolean> releaseAsync(String node) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        zkClient.delete(node, -1, (rc, path, ctx) -> {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            if (KeeperException.Code.OK == code) {
+                result.complete(true);
+            } else if (KeeperException.Code.NONODE == code) {
+                result.complete(false);
+            } else {
+                result.completeExceptionally(new LockingException("释放锁时出现KeeperException", KeeperException.create(code, path)));
+            }
+        }, null);
+        return result;
+    }
+
+    /**
+     * 一次获取锁的状态机，只在创建节点的调用线程以及zookeeper的事件线程中推进。
+     * result的完成是唯一的裁决：获取成功时以节点路径完成；先被超时或者取消完成时，删除已经创建的节点
+     */
+    private class Attempt implements Watcher {
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+        /**
+         * 创建的节点路径，创建成功之前为null
+         */
+        private volatile String node;
+        private long sequence;
+        /**
+         * 正在监听的前一个节点
+         */
+        private String watchedNode;
+
+        Attempt() {
+            // 被超时或者取消完成时，删除已经创建的节点；节点还没有创建时，由创建回调删除
+            result.whenComplete((value, e) -> {
+                if (null == value) {
+                    abandon();
+                }
+            });
+        }
+
+        /**
+         * 状态1：创建临时顺序节点，父节点不存在时先创建父节点
+         */
+        void create() {
+            zkClient.create(lockPath + "/" + MEMBER_PREFIX, null, acl, CreateMode.EPHEMERAL_SEQUENTIAL, (rc, path, ctx, name) -> {
+                KeeperException.Code code = KeeperException.Code.get(rc);
+                if (KeeperException.Code.OK == code) {
+                    node = name;
+                    sequence = ZkUtils.sequenceOf(name.substring(name.lastIndexOf('/') + 1));
+                    if (result.isDone()) {
+                        abandon();
+                    } else {
+                        checkForLock();
+                    }
+                } else if (KeeperException.Code.NONODE == code) {
+                    ZkUtils.ensurePathAsync(zkClient, acl, lockPath).whenComplete((v, e) -> {
+                        if (null != e) {
+                            fail(e);
+                        } else if (!result.isDone()) {
+                            create();
+                        }
+                    });
+                } else {
+                    // 连接断开时节点可能已经创建成功，只能等会话失效后由zookeeper删除
+                    fail(KeeperException.create(code, path));
+                }
+            }, null);
+        }
+
+        /**
+         * 状态2：获取所有子节点，找到前一个节点；没有前一个节点时获取成功
+         */
+        void checkForLock() {
+            if (result.isDone()) {
+                return;
+            }
+            zkClient.getChildren(lockPath, false, (rc, path, ctx, children) -> {
+                KeeperException.Code code = KeeperException.Code.get(rc);
+                if (KeeperException.Code.OK != code) {
+                    fail(KeeperException.create(code, path));
+                    return;
+                }
+                String predecessor = ZkUtils.predecessorOf(children, MEMBER_PREFIX, sequence);
+                if (null == predecessor) {
+                    if (!result.complete(node)) {
+                        // 已经超时或者被取消
+                        abandon();
+                    }
+                    return;
+                }
+                LOGGER.debug("当前节点：{}，继续等待上一个节点：{}", node, predecessor);
+                watch(lockPath + "/" + predecessor);
+            }, null);
+        }
+
+        /**
+         * 状态3：监听前一个节点，前一个节点已经不存在时马上重新检查
+         */
+        void watch(String predecessor) {
+            watchedNode = predecessor;
+            zkClient.exists(predecessor, this, (rc, path, ctx, stat) -> {
+                KeeperException.Code code = KeeperException.Code.get(rc);
+                if (KeeperException.Code.NONODE == code) {
+                    checkForLock();
+                } else if (KeeperException.Code.OK != code) {
+                    fail(KeeperException.create(code, path));
+                }
+            }, null);
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            if (Event.KeeperState.Expired == event.getState()) {
+                // 会话失效，临时节点已经被删除
+                fail(new KeeperException.SessionExpiredException());
+                return;
+            }
+            if (result.isDone() || !watchedNode.equals(event.getPath())) {
+                return;
+            }
+            if (Event.EventType.NodeDeleted == event.getType()) {
+                checkForLock();
+            } else if (Event.EventType.NodeDataChanged == event.getType()) {
+                // 监听只生效一次，节点数据变化后需要重新监听
+                watch(watchedNode);
+            }
+        }
+
+        private void fail(Throwable e) {
+            LOGGER.warn("获取锁失败，节点：{}", node, e);
+            result.completeExceptionally(new LockingException("获取锁时出现KeeperException", e));
+        }
+
+        /**
+         * 放弃获取锁，删除已经创建的节点
+         */
+        private void abandon() {
+            String created = node;
+            if (null != created) {
+                zkClient.delete(created, -1, (rc, path, ctx) -> {
+                }, null);
+            }
+        }
+    }
+}
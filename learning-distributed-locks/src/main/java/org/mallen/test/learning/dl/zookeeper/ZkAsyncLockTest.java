@@ -0,0 +1,49 @@
+package org.mallen.test.learning.dl.zookeeper;
+
+import org.apache.zookeeper.ZooKeeper;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 与ZkFairLockTest相同的卖票场景，但是不使用卖票线程：一个zookeeper连接上同时发起100个异步获取锁的请求，
+ * 每个请求获取锁后卖一张票，然后释放锁。等待期间不占用任何线程，所有请求都由zookeeper的事件线程驱动。
+ *
+ * @author mallen
+ * @date 6/14/20
+ */
+public class ZkAsyncLockTest {
+    private static Integer tickets = 100;
+    /**
+     * 收集已卖票信息，如果正常的话，set的size应该等于tickets
+     */
+    private static Set<Integer> soldTickets = new HashSet(100, 1);
+    private static final String ZOOKEEPER_CONNECT_STRING = "127.0.01:2181";
+    private static final String LOCK_PATH = "/mallen/test/dl";
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        int buyerCount = tickets;
+        ZooKeeper zooKeeper = new ZooKeeper(ZOOKEEPER_CONNECT_STRING, 1500, event -> {
+            System.out.println("接收到zookeeper事件：" + event.getType().name());
+        });
+        ZkAsyncLock lock = new ZkAsyncLock(zooKeeper, LOCK_PATH);
+        CompletableFuture<?>[] buyers = new CompletableFuture<?>[buyerCount];
+        for (int i = 0; i < buyerCount; i++) {
+            int buyer = i + 1;
+            buyers[i] = lock.lockAsync().thenCompose(node -> {
+                if (tickets > 0) {
+                    soldTickets.add(tickets);
+                    System.out.println("请求" + buyer + "卖出票：" + tickets);
+                    tickets--;
+                }
+                return lock.releaseAsync(node);
+            });
+        }
+        CompletableFuture.allOf(buyers).join();
+        zooKeeper.close();
+        // 打印卖出的票的数量，如果与tickets的数量不一样，说明存在资源竞争的问题。
+        System.out.println("已卖票数量为：" + soldTickets.size());
+    }
+}
@@ -4,11 +4,13 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
+import org.mallen.test.learning.dl.DistributedLock;
+import org.mallen.test.learning.dl.LockingException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -16,13 +18,15 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * 使用zookeeper实现(公平的)分布式锁，需要注意的是：每个线程需要持有一个zookeeper连接，这样zookeeper服务器才能识别是哪个线程持有了锁。
+ * 多个线程需要共享一个连接时，使用{@link ZkLockManager}。
  * 实现参考了twitrer代码：https://github.com/twitter-archive/commons/blob/master/src/java/com/twitter/common/zookeeper/DistributedLockImpl.java
  *
  * @author mallen
  * @date 2/25/20
  */
-public class ZkFairLock {
+public class ZkFairLock implements DistributedLock {
     private static final Logger LOGGER = LoggerFactory.getLogger(ZkFairLock.class);
+    static final String MEMBER_PREFIX = "member_";
     private final ZooKeeper zkClient;
     private final String lockPath;
     private boolean holdsLock = false;
@@ -31,6 +35,10 @@ public class ZkFairLock {
     private String currentId;
     private String currentNode;
     private String watchedNode;
+    /**
+     * 创建节点时写入的数据：持有者标识，见{@link #setOwner(String)}
+     */
+    private byte[] ownerData;
     private CountDownLatch syncPoint;
     private final AtomicBoolean aborted = new AtomicBoolean(false);
 
@@ -45,6 +53,7 @@ public class ZkFairLock {
         this.syncPoint = new CountDownLatch(1);
     }
 
+    @Override
     public synchronized void lock() throws LockingException {
         if (holdsLock) {
             throw new LockingException("已经持有锁了，请先释放锁");
@@ -67,6 +76,13 @@ public class ZkFairLock {
         }
     }
 
+    @Override
+    public boolean tryLock() {
+        // 创建节点后，如果自己就是序列号最小的节点，checkForLock会同步地设置holdsLock，所以不需要等待
+        return tryLock(0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
     public synchronized boolean tryLock(long timeout, TimeUnit unit) {
         if (holdsLock) {
             throw new LockingException("已经持有锁了，请先释放锁");
@@ -85,6 +101,7 @@ public class ZkFairLock {
             }
         } catch (InterruptedException e) {
             cancelAttempt();
+            Thread.currentThread().interrupt();
             return false;
         } catch (KeeperException e) {
             // No need to clean up since the node wasn't created yet.
@@ -94,6 +111,7 @@ public class ZkFairLock {
         return true;
     }
 
+    @Override
     public synchronized void unlock() throws LockingException {
         if (StringUtils.isEmpty(currentId)) {
             throw new LockingException("没有获取锁，不能解锁!");
@@ -107,14 +125,46 @@ public class ZkFairLock {
         }
     }
 
+    /**
+     * 锁与zookeeper会话绑定，会话失效时临时节点被删除，锁也随之释放，所以没有固定的租约时间
+     */
+    @Override
+    public long getLeaseTime(TimeUnit unit) {
+        return -1;
+    }
+
+    /**
+     * 锁的持有者为当前实例创建的临时节点，与线程无关
+     */
+    @Override
+    public boolean isThreadBound() {
+        return false;
+    }
+
+    /**
+     * 设置节点数据中记录的持有者标识，之后创建的节点会写入该数据；已经持有锁时同时更新当前节点的数据。
+     * 多个线程共享一个实例（见{@link ZkLockManager}）时，用于记录实际持有锁的线程。持有者标识只用于排查问题，更新失败时只打印日志
+     */
+    synchronized void setOwner(String owner) {
+        ownerData = owner.getBytes(StandardCharsets.UTF_8);
+        if (holdsLock) {
+            try {
+                zkClient.setData(currentNode, ownerData, -1);
+            } catch (KeeperException e) {
+                LOGGER.warn("更新节点{}的持有者失败", currentNode, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOGGER.warn("更新节点{}的持有者时被interrupted", currentNode, e);
+            }
+        }
+    }
+
     private synchronized void prepare()
             throws InterruptedException, KeeperException {
-        // 确认上层节点是否存在
-        ZkUtils.ensurePath(zkClient, acl, lockPath);
         LOGGER.debug("Working with locking path:" + lockPath);
 
-        // 创建当前临时顺序节点
-        currentNode = zkClient.create(lockPath + "/member_", null, acl, CreateMode.EPHEMERAL_SEQUENTIAL);
+        // 创建当前临时顺序节点，上层节点是否存在未知时与上层节点在一个事务中创建
+        currentNode = ZkUtils.createMember(zkClient, acl, lockPath, MEMBER_PREFIX, ownerData, CreateMode.EPHEMERAL_SEQUENTIAL);
 
         // 我们关心注册节点的顺序号，该序列号会被用于锁顺序的比对
         if (currentNode.contains("/")) {
@@ -147,6 +197,26 @@ public class ZkFairLock {
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
+        reset();
+    }
+
+    /**
+     * 当前持有锁的节点路径，没有持有锁时返回null
+     */
+    synchronized String getHeldNode() {
+        return holdsLock ? currentNode : null;
+    }
+
+    /**
+     * 持有锁的节点已经在外部被删除（见{@link ZkUtils#deleteAll}），只清理本地状态
+     */
+    synchronized void forget() {
+        if (holdsLock) {
+            reset();
+        }
+    }
+
+    private void reset() {
         holdsLock = false;
         aborted.set(false);
         currentId = null;
@@ -166,28 +236,26 @@ public class ZkFairLock {
             }
 
             try {
-                List<String> candidates = zkClient.getChildren(lockPath, null);
-                List<String> sortedMembers = Collections.unmodifiableList(candidates);
-                sortedMembers.sort(Comparator.naturalOrder());
-
-                // 没有任何的子节点，这是一种异常现象
-                if (sortedMembers.isEmpty()) {
-                    throw new LockingException("错误！节点：" + lockPath + "，必须要存在子字节点");
-                }
-
-                int memberIndex = sortedMembers.indexOf(currentId);
-                if (memberIndex == 0) {
-                    // 如果轮到我们获取到锁了
-                    holdsLock = true;
-                    syncPoint.countDown();
-                } else {
-                    final String nextLowestNode = sortedMembers.get(memberIndex - 1);
-                    LOGGER.debug("当前节点：{}，继续等待上一个节点：{}", currentId, nextLowestNode);
-
-                    watchedNode = String.format("%s/%s", lockPath, nextLowestNode);
-                    Stat stat = zkClient.exists(watchedNode, this);
-                    if (stat == null) {
-                        checkForLock();
+                long currentSequence = ZkUtils.sequenceOf(currentId);
+                while (true) {
+                    List<String> candidates = zkClient.getChildren(lockPath, null);
+                    // 没有任何的子节点，这是一种异常现象
+                    if (candidates.isEmpty()) {
+                        throw new LockingException("错误！节点：" + lockPath + "，必须要存在子字节点");
+                    }
+                    // 只需要找到序列号比自己小的节点中最大的那个（即前一个节点），遍历一次即可，不需要排序所有节点
+                    String predecessor = ZkUtils.predecessorOf(candidates, MEMBER_PREFIX, currentSequence);
+                    if (null == predecessor) {
+                        // 如果轮到我们获取到锁了
+                        holdsLock = true;
+                        syncPoint.countDown();
+                        return;
+                    }
+                    LOGGER.debug("当前节点：{}，继续等待上一个节点：{}", currentId, predecessor);
+                    watchedNode = lockPath + "/" + predecessor;
+                    // 只有前一个节点被删除时才会收到通知并重新检查；前一个节点在获取子节点之后已经被删除时，马上重新检查
+                    if (zkClient.exists(watchedNode, this) != null) {
+                        return;
                     }
                 }
             } catch (InterruptedException e) {
@@ -223,6 +291,19 @@ public class ZkFairLock {
             } else if (event.getType() == Event.EventType.NodeDeleted) {
                 // 如果是我监听的节点的删除事件，则触发我自己获取锁事件
                 checkForLock();
+            } else if (event.getType() == Event.EventType.NodeDataChanged) {
+                // 持有者标识更新（见setOwner）也会触发exists的监听，监听只生效一次，需要重新监听
+                try {
+                    if (zkClient.exists(watchedNode, this) == null) {
+                        checkForLock();
+                    }
+                } catch (InterruptedException e) {
+                    LOGGER.warn("当前节点{}的LockWatcher被interrupted了，取消获取锁请求", currentId, e);
+                    cancelAttempt();
+                } catch (KeeperException e) {
+                    LOGGER.warn("当前节点{}，出现KeeperException，取消获取锁请求", currentId, e);
+                    cancelAttempt();
+                }
             } else {
                 LOGGER.warn("不需要的zookeeper事件: {}", event.getType().name());
             }
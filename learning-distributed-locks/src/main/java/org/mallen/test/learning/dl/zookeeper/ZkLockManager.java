@@ -0,0 +1,181 @@
+package org.mallen.test.learning.dl.zookeeper;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.mallen.test.learning.dl.DistributedLock;
+import org.mallen.test.learning.dl.LockingException;
+import org.mallen.test.learning.dl.local.TwoLevelLock;
+import org.mallen.test.learning.dl.local.TwoLevelLockFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 多个线程共享一个zookeeper会话的锁管理器，每个JVM只需要一个：
+ * 1. 每个路径的锁是一个以{@link ZkFairLock}为分布式锁的{@link TwoLevelLock}：本地线程先在内存中排队（公平的ReentrantLock），
+ * 只有排在最前面的线程才会在zookeeper上创建临时顺序节点，所以每个JVM在每个路径下最多只有一个节点，会话数、心跳以及服务端的watch数量不会随着线程数增加；
+ * 2. 释放锁时如果有本地线程在等待，不删除节点，直接把锁移交给下一个本地线程，连续移交的次数不超过maxHandoffs，避免其他JVM饿死；
+ * 3. 节点数据中记录实际持有锁的线程（进程名:线程ID），移交时同时更新，可以通过{@link #getOwner(String)}查看。
+ *
+ * @author mallen
+ * @date 6/13/20
+ */
+public class ZkLockManager implements Closeable {
+    private static final int DEFAULT_MAX_HANDOFFS = 16;
+    private static final String PROCESS_NAME = ManagementFactory.getRuntimeMXBean().getName();
+    private final ZooKeeper zkClient;
+    /**
+     * zkClient是否由当前对象创建，是则在close时关闭
+     */
+    private final boolean ownsClient;
+    /**
+     * 每个路径一个锁，获取后不再移除（锁的数量与路径的数量相同）
+     */
+    private final TwoLevelLockFactory<ZkFairLock> locks;
+    /**
+     * 每个路径的zookeeper锁，用于{@link #releaseAll()}
+     */
+    private final ConcurrentMap<String, ZkFairLock> remotes = new ConcurrentHashMap<>();
+
+    public ZkLockManager(String connectString, int sessionTimeout) throws IOException {
+        this(new ZooKeeper(connectString, sessionTimeout, event -> {
+        }), true, ZooDefs.Ids.OPEN_ACL_UNSAFE, DEFAULT_MAX_HANDOFFS);
+    }
+
+    /**
+     * @param zkClient 共享的zookeeper连接，由调用者负责关闭
+     */
+    public ZkLockManager(ZooKeeper zkClient) {
+        this(zkClient, ZooDefs.Ids.OPEN_ACL_UNSAFE, DEFAULT_MAX_HANDOFFS);
+    }
+
+    /**
+     * @param zkClient    共享的zookeeper连接，由调用者负责关闭
+     * @param maxHandoffs 最多连续在本地线程之间移交多少次，超过后删除节点，重新排队
+     */
+    public ZkLockManager(ZooKeeper zkClient, List<ACL> acl, int maxHandoffs) {
+        this(zkClient, false, acl, maxHandoffs);
+    }
+
+    private ZkLockManager(ZooKeeper zkClient, boolean ownsClient, List<ACL> acl, int maxHandoffs) {
+        this.zkClient = zkClient;
+        this.ownsClient = ownsClient;
+        // 获取或者取走移交的zookeeper锁之前，先记录实际持有锁的线程
+        this.locks = new TwoLevelLockFactory<>(path -> {
+            ZkFairLock remote = new ZkFairLock(zkClient, path, acl);
+            remotes.put(path, remote);
+            return remote;
+        }, maxHandoffs, true, remote -> remote.setOwner(currentOwner()));
+    }
+
+    /**
+     * 获取路径对应的锁，同一个路径返回同一个对象，可以被所有线程共享
+     */
+    public DistributedLock getLock(String lockPath) {
+        return locks.getLock(lockPath);
+    }
+
+    /**
+     * 查询锁当前的持有者（可能是其他JVM）：序列号最小的节点中记录的持有者标识
+     *
+     * @return 没有持有者时返回null
+     */
+    public String getOwner(String lockPath) {
+        try {
+            while (true) {
+                List<String> members = zkClient.getChildren(lockPath, false);
+                String first = null;
+                long firstSequence = Long.MAX_VALUE;
+                for (String member : members) {
+                    if (member.startsWith(ZkFairLock.MEMBER_PREFIX) && ZkUtils.sequenceOf(member) < firstSequence) {
+                        first = member;
+                        firstSequence = ZkUtils.sequenceOf(member);
+                    }
+                }
+                if (null == first) {
+                    return null;
+                }
+                try {
+                    byte[] data = zkClient.getData(lockPath + "/" + first, false, null);
+                    return null == data ? null : new String(data, StandardCharsets.UTF_8);
+                } catch (KeeperException.NoNodeException e) {
+                    // 持有者刚好释放了锁，重新查询
+                }
+            }
+        } catch (KeeperException.NoNodeException e) {
+            return null;
+        } catch (KeeperException e) {
+            throw new LockingException("查询锁的持有者时出现KeeperException", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LockingException("查询锁的持有者时出现InterruptedException", e);
+        }
+    }
+
+    /**
+     * 在一个multi事务中删除当前JVM持有的所有节点（包括已经移交但还没有被本地线程取走的），一般在关闭前调用，
+     * 调用时不应该再有线程使用锁
+     *
+     * @return 删除的节点数量
+     */
+    public int releaseAll() {
+        List<String> nodes = new ArrayList<>();
+        List<String> held = new ArrayList<>();
+        for (Map.Entry<String, ZkFairLock> entry : remotes.entrySet()) {
+            String node = entry.getValue().getHeldNode();
+            if (null != node) {
+                nodes.add(node);
+                held.add(entry.getKey());
+            }
+        }
+        if (nodes.isEmpty()) {
+            return 0;
+        }
+        try {
+            int deleted = ZkUtils.deleteAll(zkClient, nodes);
+            for (String path : held) {
+                locks.getLock(path).forgetRemote();
+                remotes.get(path).forget();
+            }
+            return deleted;
+        } catch (KeeperException e) {
+            throw new LockingException("批量释放锁时出现KeeperException", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LockingException("批量释放锁时出现InterruptedException", e);
+        }
+    }
+
+    /**
+     * 连接由当前对象创建时关闭连接（会话关闭时zookeeper会一次删除会话的所有临时节点）；
+     * 否则连接可能还在被其他对象使用，通过{@link #releaseAll()}批量删除持有的节点
+     */
+    @Override
+    public void close() {
+        if (ownsClient) {
+            try {
+                zkClient.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            releaseAll();
+        }
+    }
+
+    /**
+     * 当前线程的持有者标识
+     */
+    private static String currentOwner() {
+        return PROCESS_NAME + ":" + Thread.currentThread().getId();
+    }
+}
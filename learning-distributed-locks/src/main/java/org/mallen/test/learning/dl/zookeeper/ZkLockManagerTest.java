@@ -0,0 +1,70 @@
+package org.mallen.test.learning.dl.zookeeper;
+
+import org.mallen.test.learning.dl.DistributedLock;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 与ZkFairLockTest相同的卖票场景，但是所有Seller通过{@link ZkLockManager}共享一个zookeeper会话，
+ * 每卖出一张票打印一次zookeeper节点中记录的持有者。
+ *
+ * @author mallen
+ * @date 6/13/20
+ */
+public class ZkLockManagerTest {
+    private static Integer tickets = 100;
+    /**
+     * 收集已卖票信息，如果正常的话，set的size应该等于tickets
+     */
+    private static Set<Integer> soldTickets = new HashSet(100, 1);
+    private static final String ZOOKEEPER_CONNECT_STRING = "127.0.01:2181";
+    private static final String LOCK_PATH = "/mallen/test/dl/tickets";
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        int sellerCount = 20;
+        CountDownLatch latch = new CountDownLatch(sellerCount);
+        try (ZkLockManager manager = new ZkLockManager(ZOOKEEPER_CONNECT_STRING, 1500)) {
+            for (int i = 0; i < sellerCount; i++) {
+                Thread thread = new Thread(new Seller(latch, manager, manager.getLock(LOCK_PATH)));
+                thread.setName("thread" + (i + 1));
+                thread.start();
+            }
+            latch.await();
+        }
+        // 打印卖出的票的数量，如果与tickets的数量不一样，说明存在多线程资源竞争的问题。
+        System.out.println("已卖票数量为：" + soldTickets.size());
+    }
+
+    static class Seller implements Runnable {
+        private final ZkLockManager manager;
+        private DistributedLock lock;
+        private final CountDownLatch latch;
+
+        public Seller(CountDownLatch latch, ZkLockManager manager, DistributedLock lock) {
+            this.latch = latch;
+            this.manager = manager;
+            this.lock = lock;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                lock.lock();
+                if (tickets > 0) {
+                    soldTickets.add(tickets);
+                    System.out.println(Thread.currentThread().getName() + "卖出票：" + tickets + "，持有者：" + manager.getOwner(LOCK_PATH));
+                    tickets--;
+                    lock.unlock();
+                } else {
+                    lock.unlock();
+                    break;
+                }
+            }
+
+            latch.countDown();
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package org.mallen.test.learning.dl.zookeeper;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.mallen.test.learning.dl.DistributedLock;
+import org.mallen.test.learning.dl.LockingException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 使用zookeeper实现的(公平的)读写锁：读锁创建read_临时顺序节点，写锁创建write_临时顺序节点，两种节点在同一个路径下共用一个序列号。
+ * 1. 读锁只需要等待序列号比自己小的写节点中最大的那个（最近的写者），前面只有读节点时直接获取成功，所以读者之间可以并行；
+ * 2. 写锁等待序列号比自己小的节点中最大的那个（不区分读写），与{@link ZkFairLock}相同；
+ * 3. 持有写锁时可以通过{@link #downgrade()}降级为读锁，降级时保留排队的位置，不会被后面等待的写者插队；
+ * 不支持升级：持有读锁时获取写锁会一直等待自己的读节点。
+ * 与{@link ZkFairLock}一样，锁的持有者为当前实例创建的临时节点，每个实例最多同时持有一个读锁和一个写锁。
+ *
+ * @author mallen
+ * @date 6/15/20
+ */
+public class ZkReadWriteLock {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ZkReadWriteLock.class);
+    static final String READ_PREFIX = "read_";
+    static final String WRITE_PREFIX = "write_";
+    private final ZooKeeper zkClient;
+    private final String lockPath;
+    private final List<ACL> acl;
+    private final Member readLock = new Member(READ_PREFIX);
+    private final Member writeLock = new Member(WRITE_PREFIX);
+
+    public ZkReadWriteLock(ZooKeeper zkClient, String lockPath) {
+        this(zkClient, lockPath, ZooDefs.Ids.OPEN_ACL_UNSAFE);
+    }
+
+    public ZkReadWriteLock(ZooKeeper zkClient, String lockPath, List<ACL> acl) {
+        this.zkClient = zkClient;
+        this.lockPath = lockPath;
+        this.acl = Collections.unmodifiableList(acl);
+    }
+
+    public DistributedLock readLock() {
+        return readLock;
+    }
+
+    public DistributedLock writeLock() {
+        return writeLock;
+    }
+
+    /**
+     * 把持有的写锁降级为读锁：在一个multi事务中删除写节点，同时创建一个与写节点序列号相同的读节点（非顺序节点，
+     * 名字中的序列号由写节点得到，zookeeper不会再分配这个序列号，所以不会重名）。
+     * 排在后面的读者马上可以获取读锁，排在后面的写者继续等待新的读节点，降级过程中其他写者不可能获取到锁。
+     * 降级后通过{@link #readLock()}释放读锁
+     */
+    public void downgrade() throws LockingException {
+        synchronized (writeLock) {
+            synchronized (readLock) {
+                if (!writeLock.holdsLock) {
+                    throw new LockingException("没有持有写锁，不能降级");
+                }
+                if (readLock.holdsLock) {
+                    throw new LockingException("已经持有读锁了，不能降级");
+                }
+                String writeNode = writeLock.currentNode;
+                String readNode = lockPath + "/" + READ_PREFIX + String.format("%010d", ZkUtils.sequenceOf(writeNode));
+                try {
+                    zkClient.multi(Arrays.asList(
+                            Op.create(readNode, null, acl, CreateMode.EPHEMERAL),
+                            Op.delete(writeNode, -1)));
+                } catch (KeeperException e) {
+                    throw new LockingException("降级写锁时出现KeeperException", e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new LockingException("降级写锁时出现InterruptedException", e);
+                }
+                LOGGER.debug("写锁{}降级为读锁{}", writeNode, readNode);
+                readLock.held(readNode);
+                writeLock.reset();
+            }
+        }
+    }
+
+    /**
+     * 阻塞当前节点的节点：读节点为前面最近的写节点，写节点为前一个节点（不区分读写）
+     */
+    private static String blockerOf(List<String> children, String prefix, long sequence) {
+        String writer = ZkUtils.predecessorOf(children, WRITE_PREFIX, sequence);
+        if (READ_PREFIX.equals(prefix)) {
+            return writer;
+        }
+        String reader = ZkUtils.predecessorOf(children, READ_PREFIX, sequence);
+        if (null == writer || null == reader) {
+            return null == writer ? reader : writer;
+        }
+        return ZkUtils.sequenceOf(writer) > ZkUtils.sequenceOf(reader) ? writer : reader;
+    }
+
+    /**
+     * 读锁或者写锁
+     */
+    private class Member implements DistributedLock {
+        private final String prefix;
+        private boolean holdsLock = false;
+        /**
+         * 持有锁的节点路径
+         */
+        private String currentNode;
+
+        Member(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public synchronized void lock() throws LockingException {
+            if (holdsLock) {
+                throw new LockingException("已经持有锁了，请先释放锁");
+            }
+            try {
+                acquire(-1);
+            } catch (InterruptedException e) {
+                throw new LockingException("获取锁时出现InterruptedException", e);
+            }
+        }
+
+        @Override
+        public boolean tryLock() {
+            // 前面没有阻塞的节点时，checkForLock会同步地获取成功，所以不需要等待
+            return tryLock(0, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public synchronized boolean tryLock(long timeout, TimeUnit unit) throws LockingException {
+            if (holdsLock) {
+                throw new LockingException("已经持有锁了，请先释放锁");
+            }
+            try {
+                return acquire(unit.toNanos(timeout));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        @Override
+        public synchronized void unlock() throws LockingException {
+            if (!holdsLock) {
+                throw new LockingException("没有获取锁，不能解锁!");
+            }
+            try {
+                delete(currentNode);
+            } finally {
+                reset();
+            }
+        }
+
+        /**
+         * 锁与zookeeper会话绑定，会话失效时临时节点被删除，锁也随之释放，所以没有固定的租约时间
+         */
+        @Override
+        public long getLeaseTime(TimeUnit unit) {
+            return -1;
+        }
+
+        /**
+         * 锁的持有者为当前实例创建的临时节点，与线程无关
+         */
+        @Override
+        public boolean isThreadBound() {
+            return false;
+        }
+
+        /**
+         * 创建节点并等待获取锁，失败（超时、被interrupted或者出现异常）时删除节点
+         *
+         * @param timeoutNanos 小于0时一直等待
+         */
+        private boolean acquire(long timeoutNanos) throws InterruptedException {
+            String node;
+            try {
+                // 上层节点是否存在未知时与上层节点在一个事务中创建
+                node = ZkUtils.createMember(zkClient, acl, lockPath, prefix, null, CreateMode.EPHEMERAL_SEQUENTIAL);
+            } catch (KeeperException e) {
+                // 节点还没有创建，不需要清理
+                throw new LockingException("获取锁时出现KeeperException", e);
+            }
+            LOGGER.debug("注册ZK节点成功：{}", node);
+            Attempt attempt = new Attempt(node, prefix);
+            boolean granted = false;
+            try {
+                attempt.checkForLock();
+                if (timeoutNanos < 0) {
+                    attempt.syncPoint.await();
+                } else {
+                    attempt.syncPoint.await(timeoutNanos, TimeUnit.NANOSECONDS);
+                }
+                if (null != attempt.failure) {
+                    throw new LockingException("获取锁时出现异常", attempt.failure);
+                }
+                granted = attempt.granted;
+            } finally {
+                attempt.abandoned = !granted;
+                if (!granted) {
+                    LOGGER.info("取消获取锁：{}", node);
+                    delete(node);
+                }
+            }
+            if (granted) {
+                held(node);
+            }
+            return granted;
+        }
+
+        private void held(String node) {
+            holdsLock = true;
+            currentNode = node;
+        }
+
+        private void reset() {
+            holdsLock = false;
+            currentNode = null;
+        }
+
+        private void delete(String node) {
+            try {
+                zkClient.delete(node, -1);
+            } catch (KeeperException.NoNodeException e) {
+                LOGGER.warn("节点{}已经不存在，不需要删除", node);
+            } catch (KeeperException e) {
+                throw new LockingException("删除锁时出现KeeperException", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new LockingException("删除锁时出现InterruptedException", e);
+            }
+        }
+    }
+
+    /**
+     * 一次获取锁的过程，监听阻塞自己的节点，被删除后重新检查。与{@link ZkFairLock.LockWatcher}相同，
+     * 每次获取锁使用一个新的对象，已经放弃的获取过程收到的事件会被忽略（zookeeper不支持取消监听）
+     */
+    private class Attempt implements Watcher {
+        private final String currentNode;
+        private final String prefix;
+        private final long currentSequence;
+        private final CountDownLatch syncPoint = new CountDownLatch(1);
+        private volatile boolean granted = false;
+        private volatile boolean abandoned = false;
+        private volatile Exception failure;
+        private String watchedNode;
+
+        Attempt(String currentNode, String prefix) {
+            this.currentNode = currentNode;
+            this.prefix = prefix;
+            this.currentSequence = ZkUtils.sequenceOf(currentNode);
+        }
+
+        /**
+         * 检查前面是否还有阻塞自己的节点，没有则获取成功；有则监听它的删除事件
+         */
+        synchronized void checkForLock() {
+            if (abandoned) {
+                return;
+            }
+            try {
+                while (true) {
+                    List<String> children = zkClient.getChildren(lockPath, false);
+                    String blocker = blockerOf(children, prefix, currentSequence);
+                    if (null == blocker) {
+                        granted = true;
+                        syncPoint.countDown();
+                        return;
+                    }
+                    LOGGER.debug("当前节点：{}，继续等待节点：{}", currentNode, blocker);
+                    watchedNode = lockPath + "/" + blocker;
+                    // 阻塞的节点在获取子节点之后已经被删除时，马上重新检查
+                    if (zkClient.exists(watchedNode, this) != null) {
+                        return;
+                    }
+                }
+            } catch (KeeperException | InterruptedException e) {
+                LOGGER.warn("当前节点{}，检查锁时出现异常，取消获取锁请求", currentNode, e);
+                failure = e;
+                syncPoint.countDown();
+            }
+        }
+
+        @Override
+        public synchronized void process(WatchedEvent event) {
+            if (event.getType() == Event.EventType.None) {
+                if (event.getState() == Event.KeeperState.Expired) {
+                    LOGGER.warn("zookeeper session失效了：{}", currentNode);
+                    failure = new KeeperException.SessionExpiredException();
+                    syncPoint.countDown();
+                }
+                return;
+            }
+            if (abandoned || !event.getPath().equals(watchedNode)) {
+                return;
+            }
+            if (event.getType() == Event.EventType.NodeDeleted) {
+                checkForLock();
+            } else if (event.getType() == Event.EventType.NodeDataChanged) {
+                // 监听只生效一次，节点数据变化后需要重新监听
+                try {
+                    if (zkClient.exists(watchedNode, this) == null) {
+                        checkForLock();
+                    }
+                } catch (KeeperException | InterruptedException e) {
+                    LOGGER.warn("当前节点{}，重新监听时出现异常，取消获取锁请求", currentNode, e);
+                    failure = e;
+                    syncPoint.countDown();
+                }
+            }
+        }
+    }
+}
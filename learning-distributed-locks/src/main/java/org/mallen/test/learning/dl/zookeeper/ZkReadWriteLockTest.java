@@ -0,0 +1,118 @@
+package org.mallen.test.learning.dl.zookeeper;
+
+import org.apache.zookeeper.ZooKeeper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 卖票场景下的读写锁：卖票线程使用写锁卖票，卖出后降级为读锁打印余票；查询线程使用读锁查询余票，查询之间可以并行。
+ * 如果读写锁正确，最大并发读的数量大于1，并且不会出现查询过程中余票发生变化的情况。
+ *
+ * @author mallen
+ * @date 6/15/20
+ */
+public class ZkReadWriteLockTest {
+    private static volatile Integer tickets = 100;
+    /**
+     * 收集已卖票信息，如果正常的话，set的size应该等于tickets
+     */
+    private static Set<Integer> soldTickets = new HashSet(100, 1);
+    private static final AtomicInteger READING = new AtomicInteger();
+    private static final AtomicInteger MAX_READING = new AtomicInteger();
+    private static final AtomicInteger DIRTY_READS = new AtomicInteger();
+    private static final String ZOOKEEPER_CONNECT_STRING = "127.0.01:2181";
+    private static final String LOCK_PATH = "/mallen/test/rw";
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        int sellerCount = 3;
+        int queryCount = 10;
+        CountDownLatch latch = new CountDownLatch(sellerCount + queryCount);
+        List<ZooKeeper> zooKeepers = new ArrayList<>();
+        for (int i = 0; i < sellerCount + queryCount; i++) {
+            ZooKeeper zooKeeper = initZookeeper();
+            zooKeepers.add(zooKeeper);
+            ZkReadWriteLock lock = new ZkReadWriteLock(zooKeeper, LOCK_PATH);
+            Thread thread = i < sellerCount ? new Thread(new Seller(latch, lock)) : new Thread(new Query(latch, lock));
+            thread.setName((i < sellerCount ? "seller" : "query") + (i + 1));
+            thread.start();
+        }
+        latch.await();
+        for (ZooKeeper zooKeeper : zooKeepers) {
+            zooKeeper.close();
+        }
+        System.out.println("已卖票数量为：" + soldTickets.size());
+        System.out.println("最大并发读数量为：" + MAX_READING.get() + "，读到的余票发生变化的次数为：" + DIRTY_READS.get());
+    }
+
+    static class Seller implements Runnable {
+        private final ZkReadWriteLock lock;
+        private final CountDownLatch latch;
+
+        public Seller(CountDownLatch latch, ZkReadWriteLock lock) {
+            this.latch = latch;
+            this.lock = lock;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                lock.writeLock().lock();
+                if (tickets > 0) {
+                    soldTickets.add(tickets);
+                    tickets--;
+                    // 降级为读锁，其他卖票线程不能修改余票，查询线程可以并行读取
+                    lock.downgrade();
+                    System.out.println(Thread.currentThread().getName() + "卖票后余票：" + tickets);
+                    lock.readLock().unlock();
+                } else {
+                    lock.writeLock().unlock();
+                    break;
+                }
+            }
+            latch.countDown();
+        }
+    }
+
+    static class Query implements Runnable {
+        private final ZkReadWriteLock lock;
+        private final CountDownLatch latch;
+
+        public Query(CountDownLatch latch, ZkReadWriteLock lock) {
+            this.latch = latch;
+            this.lock = lock;
+        }
+
+        @Override
+        public void run() {
+            int remaining;
+            do {
+                lock.readLock().lock();
+                MAX_READING.accumulateAndGet(READING.incrementAndGet(), Math::max);
+                remaining = tickets;
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (remaining != tickets) {
+                    DIRTY_READS.incrementAndGet();
+                }
+                READING.decrementAndGet();
+                lock.readLock().unlock();
+            } while (remaining > 0);
+            latch.countDown();
+        }
+    }
+
+    private static ZooKeeper initZookeeper() throws IOException {
+        return new ZooKeeper(ZOOKEEPER_CONNECT_STRING, 1500, event -> {
+            System.out.println("接收到zookeeper事件：" + event.getType().name());
+        });
+    }
+}
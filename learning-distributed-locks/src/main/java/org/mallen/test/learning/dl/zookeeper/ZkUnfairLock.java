@@ -4,19 +4,23 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
+import org.mallen.test.learning.dl.DistributedLock;
+import org.mallen.test.learning.dl.LockingException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author mallen
  * @date 2/25/20
  */
-public class ZkUnfairLock implements Watcher {
+public class ZkUnfairLock implements Watcher, DistributedLock {
     private static final Logger LOGGER = LoggerFactory.getLogger(ZkUnfairLock.class);
+    private static final String LOCK_NODE_NAME = "unfair_lock";
     private final ZooKeeper zkClient;
     private final String lockPath;
     private final List<ACL> acl;
@@ -30,7 +34,7 @@ public class ZkUnfairLock implements Watcher {
         this.lockPath = lockPath;
         this.acl = acl;
         this.syncPoint = new CountDownLatch(1);
-        this.lockNode = lockPath + "/unfair_lock";
+        this.lockNode = lockPath + "/" + LOCK_NODE_NAME;
         this.locker = UUID.randomUUID().toString() + "_" + Thread.currentThread().getId();
     }
 
@@ -38,25 +42,58 @@ public class ZkUnfairLock implements Watcher {
         this(zkClient, lockPath, ZooDefs.Ids.OPEN_ACL_UNSAFE);
     }
 
+    @Override
     public synchronized void lock() {
         if (holdsLock) {
             throw new LockingException("已经持有锁了，请先释放锁");
         }
 
+        LOGGER.debug("Working with locking path:" + lockPath);
+        // 检测并获取锁，上层节点不存在时会与锁节点在一个事务中创建
+        checkForLock();
+    }
+
+    @Override
+    public synchronized boolean tryLock() {
+        return tryLock(0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized boolean tryLock(long timeout, TimeUnit unit) throws LockingException {
+        if (holdsLock) {
+            throw new LockingException("已经持有锁了，请先释放锁");
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
         try {
-            // 确认上层节点是否存在
-            ZkUtils.ensurePath(zkClient, acl, lockPath);
-            LOGGER.debug("Working with locking path:" + lockPath);
-            // 检测并获取锁
-            checkForLock();
+            while (true) {
+                try {
+                    // 上层节点是否存在未知时与上层节点在一个事务中创建
+                    ZkUtils.createMember(zkClient, acl, lockPath, LOCK_NODE_NAME, locker.getBytes(), CreateMode.EPHEMERAL);
+                    holdsLock = true;
+                    return true;
+                } catch (KeeperException.NodeExistsException e) {
+                    // 节点已经存在，表示其他线程已经获取到锁
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                // 监听锁节点，节点不存在时直接重试，存在时等待节点删除
+                if (zkClient.exists(lockNode, this) != null && !syncPoint.await(remaining, TimeUnit.NANOSECONDS)) {
+                    return false;
+                }
+                syncPoint = new CountDownLatch(1);
+            }
         } catch (KeeperException e) {
             throw new LockingException("获取锁时出现KeeperException", e);
         } catch (InterruptedException e) {
             cancelAttempt();
-            throw new LockingException("获取锁时出现InterruptedException", e);
+            Thread.currentThread().interrupt();
+            return false;
         }
     }
 
+    @Override
     public synchronized void unlock() throws LockingException {
         try {
             // Try aborting!
@@ -77,9 +114,25 @@ public class ZkUnfairLock implements Watcher {
         cancelAttempt();
     }
 
+    /**
+     * 锁与zookeeper会话绑定，会话失效时临时节点被删除，锁也随之释放，所以没有固定的租约时间
+     */
+    @Override
+    public long getLeaseTime(TimeUnit unit) {
+        return -1;
+    }
+
+    /**
+     * 锁的持有者为当前实例创建的临时节点，与线程无关
+     */
+    @Override
+    public boolean isThreadBound() {
+        return false;
+    }
+
     private void checkForLock() {
         try {
-            zkClient.create(lockNode, locker.getBytes(), acl, CreateMode.EPHEMERAL);
+            ZkUtils.createMember(zkClient, acl, lockPath, LOCK_NODE_NAME, locker.getBytes(), CreateMode.EPHEMERAL);
             holdsLock = true;
         } catch (KeeperException e) {
             // 节点已经存在，表示其他线程已经获取到锁
@@ -3,12 +3,24 @@ package org.mallen.test.learning.dl.zookeeper;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.ACL;
+import org.mallen.test.learning.dl.LockingException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author mallen
@@ -16,6 +28,18 @@ import java.util.List;
  */
 public class ZkUtils {
     private static final Logger LOGGER = LoggerFactory.getLogger(ZkUtils.class);
+    /**
+     * 顺序节点序列号的长度
+     */
+    private static final int SEQUENCE_LENGTH = 10;
+    /**
+     * 每个multi事务最多包含的操作数量，避免请求超过jute.maxbuffer
+     */
+    private static final int MAX_MULTI_OPS = 1000;
+    /**
+     * 已经确认存在的路径，按zookeeper连接区分（不同的连接可能连接到不同的集群，或者使用不同的chroot）
+     */
+    private static final Map<ZooKeeper, Set<String>> KNOWN_PATHS = Collections.synchronizedMap(new WeakHashMap<>());
     /**
      * 检查path的合法性，如果path不存在，则创建path
      *
@@ -24,13 +48,105 @@ public class ZkUtils {
      * @param path
      */
     public static void ensurePath(ZooKeeper zkClient, List<ACL> acl, String path) throws KeeperException, InterruptedException {
-        if (StringUtils.isBlank(path)) {
-            throw new LockingException("path can't be blank");
-        }
-        if (!path.startsWith("/")) {
-            throw new LockingException("path must start with /");
+        checkPath(path);
+        // 已经确认存在的路径不需要再检查，节省每次获取锁的exists请求
+        if (knownPaths(zkClient).contains(path)) {
+            return;
         }
         doEnsurePath(zkClient, acl, path);
+        knownPaths(zkClient).add(path);
+    }
+
+    /**
+     * 从已知存在的路径中移除path以及它的子路径，在path下创建节点出现NoNode时调用
+     */
+    public static void invalidatePath(ZooKeeper zkClient, String path) {
+        knownPaths(zkClient).removeIf(known -> known.equals(path) || known.startsWith(path + "/"));
+    }
+
+    /**
+     * 在parent下创建节点：parent已知存在时直接创建，只需要一次请求；
+     * parent是否存在未知时，在一个multi事务中同时创建parent和节点，而不是先exists检查parent再创建节点。
+     * parent被删除后创建节点会出现NoNode，此时从已知存在的路径中移除parent并重试
+     *
+     * @param name 节点名，顺序节点为序列号前面的部分
+     * @return 创建的节点路径（顺序节点包含序列号）
+     */
+    public static String createMember(ZooKeeper zkClient, List<ACL> acl, String parent, String name, byte[] data, CreateMode mode)
+            throws KeeperException, InterruptedException {
+        checkPath(parent);
+        String path = parent + "/" + name;
+        while (true) {
+            if (knownPaths(zkClient).contains(parent)) {
+                try {
+                    return zkClient.create(path, data, acl, mode);
+                } catch (KeeperException.NoNodeException e) {
+                    invalidatePath(zkClient, parent);
+                    continue;
+                }
+            }
+            try {
+                List<OpResult> results = zkClient.multi(Arrays.asList(
+                        Op.create(parent, null, acl, CreateMode.PERSISTENT),
+                        Op.create(path, data, acl, mode)));
+                knownPaths(zkClient).add(parent);
+                return ((OpResult.CreateResult) results.get(1)).getPath();
+            } catch (KeeperException e) {
+                KeeperException.Code parentCode = errorOf(e, 0);
+                int lastPathIndex = parent.lastIndexOf('/');
+                if (KeeperException.Code.NODEEXISTS == parentCode) {
+                    // parent已经存在，下一次循环直接创建节点
+                    knownPaths(zkClient).add(parent);
+                } else if (KeeperException.Code.NONODE == parentCode && lastPathIndex > 0) {
+                    // 上层节点也不存在（可能已经被删除，缓存已经过期）
+                    String grandparent = parent.substring(0, lastPathIndex);
+                    invalidatePath(zkClient, grandparent);
+                    ensurePath(zkClient, acl, grandparent);
+                } else if (KeeperException.Code.OK == parentCode) {
+                    throw KeeperException.create(errorOf(e, 1), path);
+                } else {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * 在multi事务中批量删除节点，例如关闭前一次释放持有的所有锁。
+     * 事务中有节点已经不存在时整个事务都会失败，此时去掉不存在的节点后重试
+     *
+     * @return 实际删除的节点数量
+     */
+    public static int deleteAll(ZooKeeper zkClient, Collection<String> paths) throws KeeperException, InterruptedException {
+        List<String> all = new ArrayList<>(paths);
+        int deleted = 0;
+        for (int from = 0; from < all.size(); from += MAX_MULTI_OPS) {
+            List<String> batch = all.subList(from, Math.min(all.size(), from + MAX_MULTI_OPS));
+            while (!batch.isEmpty()) {
+                List<Op> ops = new ArrayList<>(batch.size());
+                for (String path : batch) {
+                    ops.add(Op.delete(path, -1));
+                }
+                try {
+                    zkClient.multi(ops);
+                    deleted += batch.size();
+                    break;
+                } catch (KeeperException e) {
+                    List<String> remaining = new ArrayList<>(batch.size());
+                    for (int i = 0; i < batch.size(); i++) {
+                        if (KeeperException.Code.NONODE != errorOf(e, i)) {
+                            remaining.add(batch.get(i));
+                        }
+                    }
+                    if (remaining.size() == batch.size()) {
+                        // 不是因为节点不存在而失败
+                        throw e;
+                    }
+                    batch = remaining;
+                }
+            }
+        }
+        return deleted;
     }
 
     public static void doEnsurePath(ZooKeeper zkClient, List<ACL> acl, String path) throws KeeperException, InterruptedException {
@@ -50,4 +166,101 @@ public class ZkUtils {
             }
         }
     }
+
+    /**
+     * 解析顺序节点的序列号：zookeeper在节点名后追加的10位数字
+     *
+     * @param nodeName 节点名（不包含父路径），例如member_0000000012
+     */
+    public static long sequenceOf(String nodeName) {
+        if (nodeName.length() < SEQUENCE_LENGTH) {
+            throw new LockingException("不是顺序节点：" + nodeName);
+        }
+        try {
+            return Long.parseLong(nodeName.substring(nodeName.length() - SEQUENCE_LENGTH));
+        } catch (NumberFormatException e) {
+            throw new LockingException("不是顺序节点：" + nodeName, e);
+        }
+    }
+
+    /**
+     * 找到序列号小于sequence的节点中序列号最大的那个（即前一个节点），只遍历一次，不需要排序
+     *
+     * @param children 子节点名
+     * @param prefix   只比较以prefix开头的节点
+     * @return 没有前一个节点时返回null
+     */
+    public static String predecessorOf(List<String> children, String prefix, long sequence) {
+        String predecessor = null;
+        long predecessorSequence = -1;
+        for (String child : children) {
+            if (!child.startsWith(prefix)) {
+                continue;
+            }
+            long childSequence = sequenceOf(child);
+            if (childSequence < sequence && childSequence > predecessorSequence) {
+                predecessor = child;
+                predecessorSequence = childSequence;
+            }
+        }
+        return predecessor;
+    }
+
+    /**
+     * {@link #ensurePath(ZooKeeper, List, String)}的异步版本：直接创建path，上层节点不存在时先创建上层节点，不阻塞调用线程
+     *
+     * @return path存在后完成，回调在zookeeper的事件线程中执行
+     */
+    public static CompletableFuture<Void> ensurePathAsync(ZooKeeper zkClient, List<ACL> acl, String path) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        zkClient.create(path, null, acl, CreateMode.PERSISTENT, (rc, p, ctx, name) -> {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            int lastPathIndex = path.lastIndexOf('/');
+            if (KeeperException.Code.OK == code || KeeperException.Code.NODEEXISTS == code) {
+                result.complete(null);
+            } else if (KeeperException.Code.NONODE == code && lastPathIndex > 0) {
+                // 上层节点不存在，先创建上层节点，再重新创建当前节点
+                ensurePathAsync(zkClient, acl, path.substring(0, lastPathIndex))
+                        .thenCompose(v -> ensurePathAsync(zkClient, acl, path))
+                        .whenComplete((v, e) -> {
+                            if (null != e) {
+                                result.completeExceptionally(e);
+                            } else {
+                                result.complete(null);
+                            }
+                        });
+            } else {
+                result.completeExceptionally(KeeperException.create(code, path));
+            }
+        }, null);
+        return result;
+    }
+
+    private static void checkPath(String path) {
+        if (StringUtils.isBlank(path)) {
+            throw new LockingException("path can't be blank");
+        }
+        if (!path.startsWith("/")) {
+            throw new LockingException("path must start with /");
+        }
+    }
+
+    private static Set<String> knownPaths(ZooKeeper zkClient) {
+        return KNOWN_PATHS.computeIfAbsent(zkClient, client -> ConcurrentHashMap.newKeySet());
+    }
+
+    /**
+     * multi事务失败时第index个操作的结果，不是multi事务本身的失败（例如连接断开）时返回异常本身的错误码
+     */
+    private static KeeperException.Code errorOf(KeeperException e, int index) {
+        List<OpResult> results = e.getResults();
+        if (null == results || results.size() <= index) {
+            return e.code();
+        }
+        OpResult result = results.get(index);
+        if (result instanceof OpResult.ErrorResult) {
+            return KeeperException.Code.get(((OpResult.ErrorResult) result).getErr());
+        }
+        return KeeperException.Code.OK;
+    }
 }
@@ -0,0 +1,14 @@
+CREATE TABLE `pessimistic_item`
+(
+    `id`          BIGINT        NOT NULL AUTO_INCREMENT,
+    `owner`       varchar(50)   NULL COMMENT '领取者标识，NULL表示未被领取',
+    `claimed_at`  BIGINT        NULL COMMENT '领取时间，毫秒级别时间戳',
+    `description` varchar(1024) COMMENT '描述',
+    PRIMARY KEY (`id`),
+    KEY `idx_owner` (`owner`)
+) ENGINE = InnoDB COMMENT ='悲观锁分配的资源表，每一行是一个可以被领取的资源（座位、任务）';
+
+-- 初始化100个座位，需要mysql 8.0（SKIP LOCKED、NOWAIT同样需要8.0）
+insert into pessimistic_item(`description`)
+with recursive seq(n) as (select 1 union all select n + 1 from seq where n < 100)
+select concat('座位', n) from seq;